@@ -0,0 +1,102 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.avro.Schema;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.serde2.SerDeException;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.io.Writable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rows per second through AvroSerDe's deserialize and serialize, for tables
+ * of various shapes.  Each operation is one row; a row deserialized starts
+ * out as its encoded bytes, as read from a file, so is decoded as well.  Run
+ * with -prof gc for the bytes allocated per row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AvroSerDeBenchmark {
+  // Cycled through, so the branches taken vary as they would over a table
+  private static final int ROWS = 1024;
+
+  @Param({"kitchensink", "wide", "nested", "collections", "bytes", "nullable"})
+  public String shape;
+
+  private Schema schema;
+  private AvroSerDe serDe;
+  private byte[][] encoded;
+  private final AvroGenericRecordWritable record = new AvroGenericRecordWritable();
+  private Object[] rows;
+  private ObjectInspector rowInspector;
+  private int next = 0;
+
+  @Setup
+  @SuppressWarnings("unchecked")
+  public void setUp() throws Exception {
+    schema = BenchmarkData.schemaOf(shape);
+    Properties properties = new Properties();
+    properties.setProperty(HaivvreoUtils.SCHEMA_LITERAL, schema.toString());
+    // Rows serialized here are copies, which wouldn't pass through anyway.
+    properties.setProperty(AvroSerDe.PASS_THROUGH, "false");
+    serDe = new AvroSerDe();
+    serDe.initialize(new Configuration(), properties);
+
+    // Rows to serialize are copies of those deserialized, as an operator
+    // would make.  (Hive's copyToStandardObject loses unions' tags.)
+    rowInspector = serDe.getObjectInspector();
+    BenchmarkData data = BenchmarkData.forShape(shape);
+    encoded = new byte[ROWS][];
+    rows = new Object[ROWS];
+    for(int i = 0; i < ROWS; i++) {
+      encoded[i] = data.encoded(schema);
+      record.setEncoded(schema, null, encoded[i], 0, encoded[i].length);
+      rows[i] = new ArrayList<Object>((List<Object>) serDe.deserialize(record));
+    }
+  }
+
+  @Benchmark
+  public Object deserialize() throws SerDeException {
+    byte[] bytes = encoded[next++ & (ROWS - 1)];
+    record.setEncoded(schema, null, bytes, 0, bytes.length);
+    return serDe.deserialize(record);
+  }
+
+  @Benchmark
+  public Writable serialize() throws SerDeException {
+    return serDe.serialize(rows[next++ & (ROWS - 1)], rowInspector);
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Schemas of the shapes of table benchmarked, and random records of them.
+ */
+class BenchmarkData {
+  private final Random random;
+  private final int collectionSize;
+  private final int bytesSize;
+  private final double nullChance;
+
+  BenchmarkData(long seed, int collectionSize, int bytesSize, double nullChance) {
+    this.random = new Random(seed);
+    this.collectionSize = collectionSize;
+    this.bytesSize = bytesSize;
+    this.nullChance = nullChance;
+  }
+
+  /**
+   * @return the data for a shape: kitchensink, wide, nested, collections,
+   * bytes or nullable
+   */
+  static BenchmarkData forShape(String shape) {
+    if(shape.equals("collections")) return new BenchmarkData(42, 200, 16, 0);
+    if(shape.equals("bytes")) return new BenchmarkData(42, 4, 1024, 0);
+    if(shape.equals("nullable")) return new BenchmarkData(42, 4, 16, 0.5);
+    return new BenchmarkData(42, 4, 16, 0);
+  }
+
+  static Schema schemaOf(String shape) throws IOException {
+    if(shape.equals("kitchensink")) {
+      InputStream in = BenchmarkData.class.getResourceAsStream("/kitchensink.avsc");
+      if(in == null) throw new IOException("kitchensink.avsc is not on the classpath");
+      try {
+        return SchemaInterner.parse(in);
+      } finally {
+        in.close();
+      }
+    }
+
+    StringBuilder fields = new StringBuilder();
+    if(shape.equals("wide")) {
+      String[] types = {"int", "long", "double", "string", "boolean"};
+      for(int i = 0; i < 200; i++)
+        field(fields, "f" + i, "\"" + types[i % types.length] + "\"");
+    } else if(shape.equals("nested")) {
+      String inner = "{\"type\":\"record\",\"name\":\"level8\",\"fields\":[{\"name\":\"i\",\"type\":\"int\"},"
+          + "{\"name\":\"s\",\"type\":\"string\"}]}";
+      for(int level = 7; level > 0; level--)
+        inner = "{\"type\":\"record\",\"name\":\"level" + level + "\",\"fields\":[{\"name\":\"i\",\"type\":\"int\"},"
+            + "{\"name\":\"s\",\"type\":\"string\"},{\"name\":\"child\",\"type\":" + inner + "}]}";
+      field(fields, "id", "\"long\"");
+      field(fields, "root", inner);
+    } else if(shape.equals("collections")) {
+      field(fields, "id", "\"long\"");
+      field(fields, "counts", "{\"type\":\"map\",\"values\":\"long\"}");
+      field(fields, "tags", "{\"type\":\"array\",\"items\":\"string\"}");
+      field(fields, "scores", "{\"type\":\"array\",\"items\":\"double\"}");
+    } else if(shape.equals("bytes")) {
+      field(fields, "id", "\"long\"");
+      for(int i = 0; i < 4; i++)
+        field(fields, "payload" + i, "\"bytes\"");
+      field(fields, "digest", "{\"type\":\"fixed\",\"name\":\"md5\",\"size\":16}");
+    } else if(shape.equals("nullable")) {
+      String[] types = {"int", "long", "double", "string", "boolean"};
+      for(int i = 0; i < 50; i++)
+        field(fields, "f" + i, "[\"null\",\"" + types[i % types.length] + "\"]");
+    } else {
+      throw new IllegalArgumentException("Unknown shape: " + shape);
+    }
+    return SchemaInterner.parse("{\"type\":\"record\",\"name\":\"" + shape
+        + "\",\"namespace\":\"com.linkedin.haivvreo\",\"fields\":[" + fields + "]}");
+  }
+
+  private static void field(StringBuilder fields, String name, String type) {
+    if(fields.length() > 0) fields.append(',');
+    fields.append("{\"name\":\"").append(name).append("\",\"type\":").append(type).append('}');
+  }
+
+  /**
+   * @return a random record of the schema, encoded as in a file's blocks
+   */
+  byte[] encoded(Schema schema) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+    new GenericDatumWriter<GenericRecord>(schema).write((GenericRecord) datum(schema), encoder);
+    encoder.flush();
+    return out.toByteArray();
+  }
+
+  private Object datum(Schema schema) {
+    switch(schema.getType()) {
+      case RECORD:
+        GenericData.Record record = new GenericData.Record(schema);
+        for(Schema.Field field : schema.getFields())
+          record.put(field.pos(), datum(field.schema()));
+        return record;
+      case ARRAY:
+        GenericData.Array<Object> array = new GenericData.Array<Object>(collectionSize, schema);
+        for(int i = 0; i < collectionSize; i++)
+          array.add(datum(schema.getElementType()));
+        return array;
+      case MAP:
+        Map<String, Object> map = new HashMap<String, Object>();
+        for(int i = 0; i < collectionSize; i++)
+          map.put("key" + i, datum(schema.getValueType()));
+        return map;
+      case UNION:
+        List<Schema> types = schema.getTypes();
+        if(HaivvreoUtils.isNullableType(schema))
+          return random.nextDouble() < nullChance ? null : datum(HaivvreoUtils.getOtherTypeFromNullableType(schema));
+        return datum(types.get(random.nextInt(types.size())));
+      case ENUM:
+        List<String> symbols = schema.getEnumSymbols();
+        return new GenericData.EnumSymbol(schema, symbols.get(random.nextInt(symbols.size())));
+      case FIXED:
+        byte[] fixed = new byte[schema.getFixedSize()];
+        random.nextBytes(fixed);
+        return new GenericData.Fixed(schema, fixed);
+      case BYTES:
+        byte[] bytes = new byte[bytesSize];
+        random.nextBytes(bytes);
+        return ByteBuffer.wrap(bytes);
+      case STRING:
+        char[] chars = new char[8 + random.nextInt(16)];
+        for(int i = 0; i < chars.length; i++)
+          chars[i] = (char) ('a' + random.nextInt(26));
+        return new String(chars);
+      case INT: return random.nextInt();
+      case LONG: return random.nextLong();
+      case FLOAT: return random.nextFloat();
+      case DOUBLE: return random.nextDouble();
+      case BOOLEAN: return random.nextBoolean();
+      case NULL: return null;
+      default: throw new IllegalArgumentException("Unexpected type: " + schema.getType());
+    }
+  }
+}
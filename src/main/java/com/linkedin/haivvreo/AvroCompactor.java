@@ -0,0 +1,246 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Compacts the many small Avro files of a table or partition into a few large
+ * ones without decoding their records.  Files are grouped by schema, and each
+ * group is concatenated by copying its files' compressed blocks as they are.
+ * Only files whose codec differs from their group's have their blocks
+ * recompressed, and only files whose schema differs from the one asked for
+ * have their records decoded and re-encoded.
+ *
+ * Usage: AvroCompactor [-schema url] [-maxsize bytes] input-dir output-dir
+ *
+ * Compacted files are written to output-dir, which must not be input-dir;
+ * swapping them in for the originals is left to the caller.
+ */
+public class AvroCompactor extends Configured implements Tool {
+  private static final Log LOG = LogFactory.getLog(AvroCompactor.class);
+
+  static final String USAGE = "Usage: AvroCompactor [-schema url] [-maxsize bytes] input-dir output-dir";
+
+  // Hive and Hadoop's bookkeeping files, which aren't data
+  private static final PathFilter DATA_FILES = new PathFilter() {
+    @Override
+    public boolean accept(Path path) {
+      String name = path.getName();
+      return !name.startsWith("_") && !name.startsWith(".");
+    }
+  };
+
+  private Schema targetSchema = null; // Null to keep each file's schema
+  private long maxFileSize = Long.MAX_VALUE;
+  private int filesWritten = 0;
+
+  public AvroCompactor() {}
+
+  public AvroCompactor(Configuration conf) {
+    super(conf);
+  }
+
+  /**
+   * Write every file with this schema, resolving records from any file
+   * written with another.  Unless set, files are grouped by their schema.
+   */
+  public AvroCompactor setTargetSchema(Schema targetSchema) {
+    this.targetSchema = targetSchema;
+    return this;
+  }
+
+  /**
+   * Start a new compacted file once one grows past this size.  Files are
+   * only split between input files, so one can go over by up to an input.
+   */
+  public AvroCompactor setMaxFileSize(long maxFileSize) {
+    this.maxFileSize = maxFileSize;
+    return this;
+  }
+
+  // Input files sharing a schema, to be compacted together
+  private static class Group {
+    final Schema schema;
+    final List<FileStatus> files = new ArrayList<FileStatus>();
+    final Map<String, Long> bytesByCodec = new HashMap<String, Long>();
+
+    Group(Schema schema) {
+      this.schema = schema;
+    }
+
+    // The codec most of the group's data is already in, so least is recompressed.
+    String mostCommonCodec() {
+      String codec = DataFileConstants.NULL_CODEC;
+      long most = -1;
+      for(Map.Entry<String, Long> e : bytesByCodec.entrySet()) {
+        if(e.getValue() > most) {
+          most = e.getValue();
+          codec = e.getKey();
+        }
+      }
+      return codec;
+    }
+  }
+
+  /**
+   * Compact the Avro files in input into output.
+   * @return the number of compacted files written
+   */
+  public int compact(Path input, Path output) throws IOException {
+    FileSystem inFs = input.getFileSystem(getConf());
+    FileSystem outFs = output.getFileSystem(getConf());
+    if(inFs.makeQualified(input).equals(outFs.makeQualified(output)))
+      throw new IOException("Compacted files must be written somewhere other than " + input);
+
+    Map<Schema, Group> groups = new LinkedHashMap<Schema, Group>();
+    for(FileStatus file : inFs.listStatus(input, DATA_FILES)) {
+      if(file.isDir() || file.getLen() == 0) continue;
+
+      DataFileStream<GenericRecord> dfs = open(inFs, file.getPath(), null);
+      try {
+        Schema schema = targetSchema != null ? targetSchema : dfs.getSchema();
+        Group group = groups.get(schema);
+        if(group == null) {
+          group = new Group(schema);
+          groups.put(schema, group);
+        }
+        group.files.add(file);
+        String codec = codecOf(dfs);
+        Long bytes = group.bytesByCodec.get(codec);
+        group.bytesByCodec.put(codec, (bytes == null ? 0 : bytes) + file.getLen());
+      } finally {
+        dfs.close();
+      }
+    }
+
+    filesWritten = 0;
+    outFs.mkdirs(output);
+    for(Group group : groups.values())
+      compact(inFs, group, outFs, output);
+    return filesWritten;
+  }
+
+  private void compact(FileSystem inFs, Group group, FileSystem outFs, Path output) throws IOException {
+    String codec = group.mostCommonCodec();
+    DataFileWriter<GenericRecord> dfw = null;
+    long size = 0;
+    try {
+      for(FileStatus file : group.files) {
+        if(dfw != null && size >= maxFileSize) {
+          dfw.close();
+          dfw = null;
+        }
+        if(dfw == null) {
+          Path current = new Path(output, String.format("compacted-%05d.avro", filesWritten++));
+          dfw = new DataFileWriter<GenericRecord>(new GenericDatumWriter<GenericRecord>(group.schema));
+          dfw.setCodec(CodecFactory.fromString(codec));
+          dfw.create(group.schema, outFs.create(current));
+        }
+
+        // Records, if they need to be read at all, are read in the group's schema.
+        DataFileStream<GenericRecord> dfs = open(inFs, file.getPath(), group.schema);
+        try {
+          if(dfs.getSchema().equals(group.schema)) {
+            // Blocks are copied as they are unless the codec differs.
+            dfw.appendAllFrom(dfs, false);
+          } else {
+            LOG.info("Re-encoding " + file.getPath() + ", whose schema differs from the one asked for");
+            GenericRecord record = null;
+            while(dfs.hasNext()) {
+              record = dfs.next(record);
+              dfw.append(record);
+            }
+          }
+        } finally {
+          dfs.close();
+        }
+        size = dfw.sync(); // Position in the file, which is its size so far
+      }
+    } finally {
+      if(dfw != null) dfw.close();
+    }
+  }
+
+  private static DataFileStream<GenericRecord> open(FileSystem fs, Path path, Schema readerSchema) throws IOException {
+    InputStream in = fs.open(path);
+    try {
+      return new DataFileStream<GenericRecord>(in, new GenericDatumReader<GenericRecord>(null, readerSchema));
+    } catch (IOException e) {
+      in.close();
+      throw new IOException("Unable to read " + path + " as an Avro file", e);
+    }
+  }
+
+  private static String codecOf(DataFileStream<GenericRecord> dfs) {
+    String codec = dfs.getMetaString(DataFileConstants.CODEC);
+    return codec == null ? DataFileConstants.NULL_CODEC : codec;
+  }
+
+  @Override
+  public int run(String[] args) throws Exception {
+    List<String> paths = new ArrayList<String>();
+    for(int i = 0; i < args.length; i++) {
+      if(args[i].equals("-schema") && i + 1 < args.length) {
+        Properties props = new Properties();
+        props.setProperty(HaivvreoUtils.SCHEMA_URL, args[++i]);
+        setTargetSchema(HaivvreoUtils.determineSchemaOrThrowException(getConf(), props));
+      } else if(args[i].equals("-maxsize") && i + 1 < args.length) {
+        setMaxFileSize(Long.parseLong(args[++i]));
+      } else {
+        paths.add(args[i]);
+      }
+    }
+    if(paths.size() != 2) {
+      System.err.println(USAGE);
+      return 1;
+    }
+
+    int written = compact(new Path(paths.get(0)), new Path(paths.get(1)));
+    System.out.println("Wrote " + written + " compacted files to " + paths.get(1));
+    return 0;
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.exit(ToolRunner.run(new AvroCompactor(), args));
+  }
+}
@@ -39,7 +39,8 @@ public class AvroContainerInputFormat extends FileInputFormat<NullWritable, Avro
         // TODO: How to have output files end with .avro?
       //if (file.getPath().getName().endsWith(".avro"))
         result.add(file);
-    return result.toArray(new FileStatus[0]);
+    // Files that Bloom filters show have no rows the query wants needn't be read at all.
+    return BloomFilterPruner.prune(job, result.toArray(new FileStatus[0]));
   }
 
   @Override
@@ -20,11 +20,14 @@ import static org.apache.avro.mapred.AvroJob.OUTPUT_CODEC;
 import static org.apache.avro.mapred.AvroOutputFormat.DEFAULT_DEFLATE_LEVEL;
 import static org.apache.avro.mapred.AvroOutputFormat.DEFLATE_LEVEL_KEY;
 
+import org.apache.avro.AvroRuntimeException;
 import org.apache.avro.Schema;
 import org.apache.avro.file.CodecFactory;
 import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.GenericRecord;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hive.ql.exec.FileSinkOperator;
@@ -37,12 +40,48 @@ import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.util.Progressable;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.zip.Deflater;
 
 /**
  * Write to an Avro file from a Hive process.
  */
 public class AvroContainerOutputFormat implements HiveOutputFormat<LongWritable, AvroGenericRecordWritable> {
+  private static final Log LOG = LogFactory.getLog(AvroContainerOutputFormat.class);
+
+  // Compress and write blocks on a background thread while the task fills the next
+  public static final String PIPELINED_WRITES = "haivvreo.writer.pipelined";
+  // How many finished blocks may wait for that thread before the task does
+  public static final String MAX_IN_FLIGHT_BLOCKS = "haivvreo.writer.max.inflight.blocks";
+  public static final int DEFAULT_MAX_IN_FLIGHT_BLOCKS = 2;
+  // Compress this many blocks at once; more than one implies pipelined writes
+  public static final String COMPRESSION_THREADS = "haivvreo.writer.compression.threads";
+  // Finish blocks when they'll compress to about this many bytes
+  public static final String TARGET_BLOCK_SIZE = "haivvreo.writer.block.target.size";
+  // Finish blocks when they hold this many records
+  public static final String MAX_BLOCK_RECORDS = "haivvreo.writer.block.max.records";
+  // Codec for this table, overriding the job's compression settings, and
+  // its level if it's deflate.  "auto" has the writer choose one.
+  public static final String CODEC = "haivvreo.output.codec";
+  public static final String DEFLATE_LEVEL = "haivvreo.output.deflate.level";
+  public static final String AUTO_CODEC = "auto";
+  // For auto: size, speed, balanced or a speed weight from 0 to 1...
+  public static final String CODEC_OBJECTIVE = "haivvreo.output.codec.objective";
+  // ...and how many blocks to try the candidates on.
+  public static final String CODEC_SAMPLE_BLOCKS = "haivvreo.output.codec.sample.blocks";
+  public static final int DEFAULT_CODEC_SAMPLE_BLOCKS = 2;
+  // Bytes of block buffer all the writers in a task may hold between them.
+  // Being shared by every table written, it's only taken from the job.
+  public static final String MEMORY_BUDGET = "haivvreo.writer.memory.budget";
+  // Write the stats of each file's columns beside it; see ColumnStats
+  public static final String COLUMN_STATS = "haivvreo.writer.column.stats";
+  // Write Bloom filters of these columns' values beside each file, with this
+  // rate of false positives, for files of up to this many distinct values
+  public static final String BLOOM_COLUMNS = "haivvreo.writer.bloom.columns";
+  public static final String BLOOM_FPP = "haivvreo.writer.bloom.fpp";
+  public static final String BLOOM_MAX_ENTRIES = "haivvreo.writer.bloom.max.entries";
 
   @Override
   public FileSinkOperator.RecordWriter getHiveRecordWriter(JobConf jobConf,
@@ -57,20 +96,206 @@ public class AvroContainerOutputFormat implements HiveOutputFormat<LongWritable,
     } catch (HaivvreoException e) {
       throw new IOException(e);
     }
-    GenericDatumWriter<GenericRecord> gdw = new GenericDatumWriter<GenericRecord>(schema);
-    DataFileWriter<GenericRecord> dfw = new DataFileWriter<GenericRecord>(gdw);
-    
-    if (isCompressed) {
-      int level = jobConf.getInt(DEFLATE_LEVEL_KEY, DEFAULT_DEFLATE_LEVEL);
-      String codecName = jobConf.get(OUTPUT_CODEC, DEFLATE_CODEC);
-      CodecFactory factory = codecName.equals(DEFLATE_CODEC)
+    String tableCodec = HaivvreoUtils.getTableOrJobProperty(jobConf, properties, CODEC, null);
+    boolean autoCodec = tableCodec != null && tableCodec.trim().equalsIgnoreCase(AUTO_CODEC);
+    CodecFactory codec;
+    if(tableCodec == null)
+      codec = isCompressed ? getCodec(jobConf) : null;
+    else if(autoCodec)
+      codec = null;
+    else
+      codec = getCodec(tableCodec.trim(), getDeflateLevel(jobConf, properties));
+
+    // Our own writer is only needed for settings DataFileWriter doesn't offer.
+    String pipelined = HaivvreoUtils.getTableOrJobProperty(jobConf, properties, PIPELINED_WRITES, null);
+    String compressionThreads = HaivvreoUtils.getTableOrJobProperty(jobConf, properties, COMPRESSION_THREADS, null);
+    String targetBlockSize = HaivvreoUtils.getTableOrJobProperty(jobConf, properties, TARGET_BLOCK_SIZE, null);
+    String maxBlockRecords = HaivvreoUtils.getTableOrJobProperty(jobConf, properties, MAX_BLOCK_RECORDS, null);
+    String memoryBudget = getMemoryBudget(jobConf, properties);
+    boolean columnStats = Boolean.parseBoolean(
+        HaivvreoUtils.getTableOrJobProperty(jobConf, properties, COLUMN_STATS, "false").trim());
+    String bloomColumns = HaivvreoUtils.getTableOrJobProperty(jobConf, properties, BLOOM_COLUMNS, null);
+
+    AvroGenericRecordWriter writer;
+
+    boolean ownWriter = autoCodec || memoryBudget != null || pipelined != null || compressionThreads != null
+        || targetBlockSize != null || maxBlockRecords != null;
+    if(ownWriter && !AvroContainerWriter.BlockCodec.isAvailable()) {
+      LOG.warn("Writing " + path + " with DataFileWriter, without the pipelining, block sizing, memory budget "
+          + "or automatic codec asked for, which need Avro's codecs to be usable directly.");
+      ownWriter = false;
+      if(autoCodec) codec = isCompressed ? getCodec(jobConf) : null;
+    }
+
+    if(ownWriter) {
+      AvroContainerWriter acw = new AvroContainerWriter(schema);
+      if(codec != null) acw.setCodec(codec);
+      if(autoCodec) {
+        String objective = HaivvreoUtils.getTableOrJobProperty(jobConf, properties, CODEC_OBJECTIVE, null);
+        double weight = CodecSelector.parseObjective(CodecSelector.BALANCED);
+        try {
+          if(objective != null) weight = CodecSelector.parseObjective(objective);
+        } catch (IllegalArgumentException e) {
+          invalidSetting(CODEC_OBJECTIVE, objective, CodecSelector.BALANCED, e);
+        }
+        String sampleBlocks = HaivvreoUtils.getTableOrJobProperty(jobConf, properties, CODEC_SAMPLE_BLOCKS, null);
+        CodecSelector selector = new CodecSelector(CodecSelector.defaultCandidates(), weight);
+        try {
+          acw.setCodecSelector(selector, sampleBlocks == null ? DEFAULT_CODEC_SAMPLE_BLOCKS
+              : Integer.parseInt(sampleBlocks.trim()));
+        } catch (IllegalArgumentException e) {
+          invalidSetting(CODEC_SAMPLE_BLOCKS, sampleBlocks, Integer.toString(DEFAULT_CODEC_SAMPLE_BLOCKS), e);
+          acw.setCodecSelector(selector, DEFAULT_CODEC_SAMPLE_BLOCKS);
+        }
+      }
+      if(pipelined != null && Boolean.parseBoolean(pipelined.trim())) {
+        String inFlight = HaivvreoUtils.getTableOrJobProperty(jobConf, properties, MAX_IN_FLIGHT_BLOCKS, null);
+        try {
+          acw.setPipelined(inFlight == null ? DEFAULT_MAX_IN_FLIGHT_BLOCKS : Integer.parseInt(inFlight.trim()));
+        } catch (IllegalArgumentException e) {
+          invalidSetting(MAX_IN_FLIGHT_BLOCKS, inFlight, Integer.toString(DEFAULT_MAX_IN_FLIGHT_BLOCKS), e);
+          acw.setPipelined(DEFAULT_MAX_IN_FLIGHT_BLOCKS);
+        }
+      }
+      try {
+        if(compressionThreads != null) acw.setCompressionThreads(Integer.parseInt(compressionThreads.trim()));
+      } catch (IllegalArgumentException e) {
+        invalidSetting(COMPRESSION_THREADS, compressionThreads, "one", e);
+      }
+      try {
+        if(targetBlockSize != null) acw.setTargetBlockSize(Integer.parseInt(targetBlockSize.trim()));
+      } catch (IllegalArgumentException e) {
+        invalidSetting(TARGET_BLOCK_SIZE, targetBlockSize, "the sync interval", e);
+      }
+      try {
+        if(maxBlockRecords != null) acw.setMaxBlockRecords(Long.parseLong(maxBlockRecords.trim()));
+      } catch (IllegalArgumentException e) {
+        invalidSetting(MAX_BLOCK_RECORDS, maxBlockRecords, "no limit", e);
+      }
+      if(memoryBudget != null) {
+        WriterMemoryManager memory = WriterMemoryManager.get();
+        try {
+          memory.setBudget(Long.parseLong(memoryBudget.trim()));
+        } catch (IllegalArgumentException e) {
+          invalidSetting(MEMORY_BUDGET, memoryBudget, "a budget of " + memory.getBudget() + " bytes", e);
+        }
+        acw.setMemoryManager(memory);
+      }
+
+      acw.create(path.getFileSystem(jobConf).create(path));
+      writer = new AvroGenericRecordWriter(acw);
+    } else {
+      GenericDatumWriter<GenericRecord> gdw = new GenericDatumWriter<GenericRecord>(schema);
+      DataFileWriter<GenericRecord> dfw = new DataFileWriter<GenericRecord>(gdw);
+      if(codec != null) dfw.setCodec(codec);
+
+      dfw.create(schema, path.getFileSystem(jobConf).create(path));
+      writer = new AvroGenericRecordWriter(dfw);
+    }
+
+    if(columnStats)
+      writer.collectStats(schema, path.getFileSystem(jobConf), ColumnStats.sidecarPath(Sidecars.committed(path)));
+    if(bloomColumns != null && bloomColumns.trim().length() > 0)
+      buildBloomFilters(writer, schema, bloomColumns, jobConf, properties, path);
+    return writer;
+  }
+
+  private static void buildBloomFilters(AvroGenericRecordWriter writer, Schema schema, String columns,
+                                        JobConf jobConf, Properties properties, Path path) throws IOException {
+    String fppSetting = HaivvreoUtils.getTableOrJobProperty(jobConf, properties, BLOOM_FPP, null);
+    double fpp = ColumnBloomFilter.DEFAULT_FPP;
+    try {
+      if(fppSetting != null) fpp = Double.parseDouble(fppSetting.trim());
+      if(!(fpp > 0 && fpp < 1))
+        throw new IllegalArgumentException("Invalid false positive rate for a Bloom filter: " + fpp);
+    } catch (IllegalArgumentException e) {
+      invalidSetting(BLOOM_FPP, fppSetting, Double.toString(ColumnBloomFilter.DEFAULT_FPP), e);
+      fpp = ColumnBloomFilter.DEFAULT_FPP;
+    }
+    String maxEntriesSetting = HaivvreoUtils.getTableOrJobProperty(jobConf, properties, BLOOM_MAX_ENTRIES, null);
+    long maxEntries = ColumnBloomFilter.DEFAULT_MAX_ENTRIES;
+    try {
+      if(maxEntriesSetting != null) maxEntries = Long.parseLong(maxEntriesSetting.trim());
+      if(maxEntries < 1)
+        throw new IllegalArgumentException("Invalid number of entries for a Bloom filter: " + maxEntries);
+    } catch (IllegalArgumentException e) {
+      invalidSetting(BLOOM_MAX_ENTRIES, maxEntriesSetting, Long.toString(ColumnBloomFilter.DEFAULT_MAX_ENTRIES), e);
+      maxEntries = ColumnBloomFilter.DEFAULT_MAX_ENTRIES;
+    }
+
+    List<ColumnBloomFilter> blooms = new ArrayList<ColumnBloomFilter>();
+    List<Integer> fields = new ArrayList<Integer>();
+    for(String column : columns.split(",")) {
+      column = column.trim();
+      if(column.length() == 0) continue;
+      // Hive's column names are lower case, whatever the case in the schema.
+      Schema.Field field = null;
+      for(Schema.Field f : schema.getFields())
+        if(f.name().equalsIgnoreCase(column)) field = f;
+      ColumnStats.Kind kind = field == null ? null : ColumnStats.kindOf(field.schema());
+      if(kind == null || kind == ColumnStats.Kind.BYTES || kind == ColumnStats.Kind.OTHER) {
+        LOG.warn("Not building a Bloom filter of " + column + ", which isn't a column of primitive type.");
+        continue;
+      }
+      blooms.add(new ColumnBloomFilter(field.name(), kind, maxEntries, fpp));
+      fields.add(field.pos());
+    }
+    if(blooms.isEmpty()) return;
+
+    int[] positions = new int[fields.size()];
+    for(int i = 0; i < positions.length; i++)
+      positions[i] = fields.get(i);
+    writer.buildBloomFilters(schema, blooms.toArray(new ColumnBloomFilter[blooms.size()]), positions,
+        path.getFileSystem(jobConf), ColumnBloomFilter.sidecarPath(Sidecars.committed(path)));
+  }
+
+  // The job's memory budget.  Every writer in the JVM shares the one budget,
+  // so a table can't have its own: it'd change the budget of every other
+  // table's writers, open or not.
+  private static String getMemoryBudget(JobConf jobConf, Properties properties) {
+    String budget = jobConf.get(MEMORY_BUDGET);
+    String tableBudget = properties == null ? null : properties.getProperty(MEMORY_BUDGET);
+    if(tableBudget != null && (budget == null || !tableBudget.trim().equals(budget.trim())))
+      LOG.warn("Ignoring the table's " + MEMORY_BUDGET + " (" + tableBudget + "), which can only be set for the "
+          + "whole job" + (budget == null ? "." : ", where it's " + budget + "."));
+    return budget;
+  }
+
+  // The table's deflate level, else the job's
+  private static int getDeflateLevel(JobConf jobConf, Properties properties) {
+    int jobLevel = jobConf.getInt(DEFLATE_LEVEL_KEY, DEFAULT_DEFLATE_LEVEL);
+    String level = HaivvreoUtils.getTableOrJobProperty(jobConf, properties, DEFLATE_LEVEL, null);
+    if(level == null) return jobLevel;
+    try {
+      int l = Integer.parseInt(level.trim());
+      if(l < Deflater.DEFAULT_COMPRESSION || l > Deflater.BEST_COMPRESSION)
+        throw new IllegalArgumentException("Invalid deflate level: " + l);
+      return l;
+    } catch (IllegalArgumentException e) {
+      invalidSetting(DEFLATE_LEVEL, level, Integer.toString(jobLevel), e);
+      return jobLevel;
+    }
+  }
+
+  // Tuning settings are optional, so, as with the serde's validation settings,
+  // a bad value shouldn't fail every task writing to the table.  Complain and
+  // fall back to the default instead.
+  private static void invalidSetting(String key, String value, String fallback, Exception e) {
+    LOG.warn("Invalid " + key + " (" + value + "). Falling back to " + fallback + ".", e);
+  }
+
+  private static CodecFactory getCodec(JobConf jobConf) throws IOException {
+    return getCodec(jobConf.get(OUTPUT_CODEC, DEFLATE_CODEC), jobConf.getInt(DEFLATE_LEVEL_KEY, DEFAULT_DEFLATE_LEVEL));
+  }
+
+  private static CodecFactory getCodec(String codecName, int level) throws IOException {
+    try {
+      return codecName.equals(DEFLATE_CODEC)
           ? CodecFactory.deflateCodec(level)
           : CodecFactory.fromString(codecName);
-      dfw.setCodec(factory);
+    } catch (AvroRuntimeException e) {
+      throw new IOException(e); // Unknown codec
     }
-
-    dfw.create(schema, path.getFileSystem(jobConf).create(path));
-    return new AvroGenericRecordWriter(dfw);
   }
 
   //no records will be emitted from Hive
@@ -0,0 +1,785 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.io.BinaryData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.IOUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes Avro container files, as DataFileWriter does, but can hand each
+ * completed block off to a background thread to be compressed and written
+ * while the task goes on encoding records into the next one.  Blocks can
+ * also be compressed several at a time on a pool of threads, and are still
+ * written in the order they were finished.
+ *
+ * Blocks are finished once they reach the sync interval, uncompressed, as
+ * with DataFileWriter, or, given a target block size, once they're expected
+ * to compress to about that size, judging by how well blocks have compressed
+ * so far.  A block can also be limited to a number of records.
+ *
+ * Rather than being given a codec, the writer can choose one with a
+ * {@link CodecSelector}.  It then holds the first few blocks back, as a
+ * sample to choose by, and writes the header, with the choice recorded in
+ * its metadata, once it has chosen.
+ *
+ * Given a {@link WriterMemoryManager}, the writer counts its block buffers
+ * against the manager's budget, takes them from its pool only while it has
+ * records to hold and may be asked to finish a block early.
+ *
+ * Configure with the setters, then call {@link #create}.  Once created,
+ * a writer must only be appended to from one thread.
+ */
+class AvroContainerWriter implements Closeable {
+  private static final Log LOG = LogFactory.getLog(AvroContainerWriter.class);
+
+  private final Schema schema;
+  private final GenericDatumWriter<GenericRecord> gdw;
+  private final Map<String, byte[]> meta = new HashMap<String, byte[]>();
+  private CodecFactory codecFactory = CodecFactory.nullCodec();
+  private int syncInterval = DataFileConstants.DEFAULT_SYNC_INTERVAL;
+  private int maxInFlightBlocks = 0;
+  private int compressionThreads = 1;
+  private int targetBlockSize = 0; // Compressed; zero to use the sync interval
+  private long maxBlockRecords = Long.MAX_VALUE;
+  private CodecSelector codecSelector = null;
+  private int sampleBlocks = 0;
+  private WriterMemoryManager memory = null;
+
+  // Uncompressed size at which to finish the current block, and the running
+  // estimate of compressed to uncompressed size it's worked out from.
+  private int blockLimit;
+  private double compressionRatio = -1; // Until the first block is compressed
+
+  private OutputStream out;
+  private final byte[] blockHeader = new byte[20]; // Two longs, encoded
+  private BlockCodec codec;
+  private final byte[] sync = new byte[DataFileConstants.SYNC_SIZE];
+  private boolean open = false;
+
+  // Blocks held back to choose a codec by; null once it's chosen.
+  private List<Block> samples;
+
+  // For memory management: the thread appending to this writer, bytes of
+  // buffer it holds and whether it's been asked to finish its block.
+  private Thread owner;
+  final AtomicLong heldBytes = new AtomicLong();
+  private volatile boolean flushRequested = false;
+
+  // Block currently being filled by the task, and the encoder over it,
+  // which is flushed after every record.
+  private Block current;
+  private BinaryEncoder recordEncoder;
+  private Block encoding;
+
+  // For pipelined writes: blocks waiting to be written, and emptied blocks
+  // waiting to be filled again.  Null if blocks are written by the task.
+  private BlockingQueue<Block> toWrite;
+  private BlockingQueue<Block> free;
+  private Thread writerThread;
+  private volatile Throwable failure;
+
+  // For parallel compression: the pool and a codec for each of its threads.
+  // Null if blocks are compressed as they're written.
+  private ExecutorService compressors;
+  private BlockingQueue<BlockCodec> codecs;
+
+  private static final Block END = new Block();
+
+  // How often to check the writer thread is still alive while waiting on it
+  private static final long LIVENESS_CHECK_MS = 1000;
+
+  static final int INITIAL_MANAGED_BUFFER = 8 * 1024;
+
+  // Metadata key recording the codec chosen by a CodecSelector
+  public static final String CHOSEN_CODEC = "haivvreo.codec.chosen";
+
+  // Records encoded but not yet written, and how many of them there are.
+  static class Block extends ByteArrayOutputStream {
+    private static final byte[] NO_BYTES = new byte[0];
+
+    long records = 0;
+    Future<ByteBuffer> compressed; // If being compressed in parallel
+    long counted = 0; // Bytes of buffer counted against the memory budget
+
+    int capacity() {
+      return buf.length;
+    }
+
+    // Take on a buffer to fill, while empty.
+    void adopt(byte[] buffer) {
+      buf = buffer;
+      count = 0;
+    }
+
+    // Give up the buffer, emptying the block.
+    byte[] release() {
+      byte[] buffer = buf;
+      buf = NO_BYTES;
+      reset();
+      return buffer;
+    }
+
+    byte[] getData() {
+      return buf;
+    }
+
+    // Drop anything written since the buffer was this long.
+    void truncate(int length) {
+      count = length;
+    }
+
+    @Override
+    public void reset() {
+      super.reset();
+      records = 0;
+      compressed = null;
+    }
+  }
+
+  public AvroContainerWriter(Schema schema) {
+    this.schema = schema;
+    this.gdw = new GenericDatumWriter<GenericRecord>(schema);
+  }
+
+  public AvroContainerWriter setCodec(CodecFactory codecFactory) {
+    assertNotOpen();
+    this.codecFactory = codecFactory;
+    return this;
+  }
+
+  /**
+   * Approximate uncompressed size of each block, as for DataFileWriter.
+   */
+  public AvroContainerWriter setSyncInterval(int syncInterval) {
+    assertNotOpen();
+    if(syncInterval < 32 || syncInterval > (1 << 30))
+      throw new IllegalArgumentException("Invalid sync interval: " + syncInterval);
+    this.syncInterval = syncInterval;
+    return this;
+  }
+
+  /**
+   * Finish blocks when they're expected to compress to about this many
+   * bytes, rather than at the sync interval.
+   */
+  public AvroContainerWriter setTargetBlockSize(int targetBlockSize) {
+    assertNotOpen();
+    if(targetBlockSize < 32 || targetBlockSize > (1 << 30))
+      throw new IllegalArgumentException("Invalid target block size: " + targetBlockSize);
+    this.targetBlockSize = targetBlockSize;
+    return this;
+  }
+
+  /**
+   * Finish blocks once they hold this many records, whatever their size.
+   */
+  public AvroContainerWriter setMaxBlockRecords(long maxBlockRecords) {
+    assertNotOpen();
+    if(maxBlockRecords < 1)
+      throw new IllegalArgumentException("Invalid maximum records per block: " + maxBlockRecords);
+    this.maxBlockRecords = maxBlockRecords;
+    return this;
+  }
+
+  /**
+   * Compress and write blocks on a background thread, allowing up to this
+   * many completed blocks to wait for it before appends block.  Zero (the
+   * default) writes each block on the appending thread as it fills.
+   */
+  public AvroContainerWriter setPipelined(int maxInFlightBlocks) {
+    assertNotOpen();
+    if(maxInFlightBlocks < 0)
+      throw new IllegalArgumentException("Invalid number of in-flight blocks: " + maxInFlightBlocks);
+    this.maxInFlightBlocks = maxInFlightBlocks;
+    return this;
+  }
+
+  /**
+   * Compress this many blocks at once, each on its own thread.  Implies
+   * pipelined writes, with at least one block in flight per thread.
+   */
+  public AvroContainerWriter setCompressionThreads(int compressionThreads) {
+    assertNotOpen();
+    if(compressionThreads < 1)
+      throw new IllegalArgumentException("Invalid number of compression threads: " + compressionThreads);
+    this.compressionThreads = compressionThreads;
+    return this;
+  }
+
+  /**
+   * Count block buffers against this manager's budget and share them through
+   * its pool.
+   */
+  public AvroContainerWriter setMemoryManager(WriterMemoryManager memory) {
+    assertNotOpen();
+    this.memory = memory;
+    return this;
+  }
+
+  /**
+   * Choose the codec with this selector, by how the candidates compress the
+   * first few blocks written.  Overrides any codec set.
+   */
+  public AvroContainerWriter setCodecSelector(CodecSelector codecSelector, int sampleBlocks) {
+    assertNotOpen();
+    if(sampleBlocks < 1)
+      throw new IllegalArgumentException("Invalid number of sample blocks: " + sampleBlocks);
+    this.codecSelector = codecSelector;
+    this.sampleBlocks = sampleBlocks;
+    return this;
+  }
+
+  public AvroContainerWriter setMeta(String key, byte[] value) {
+    assertNotOpen();
+    if(key.startsWith("avro."))
+      throw new IllegalArgumentException("Cannot set reserved meta key " + key);
+    meta.put(key, value);
+    return this;
+  }
+
+  public AvroContainerWriter setMeta(String key, String value) {
+    return setMeta(key, utf8(value));
+  }
+
+  public AvroContainerWriter create(OutputStream outputStream) throws IOException {
+    assertNotOpen();
+    out = new BufferedOutputStream(outputStream, 64 * 1024);
+
+    UUID uuid = UUID.randomUUID();
+    ByteBuffer.wrap(sync).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+
+    current = newBlock();
+    blockLimit = computeBlockLimit();
+    owner = Thread.currentThread();
+    if(memory != null)
+      memory.register(this);
+    if(codecSelector != null)
+      samples = new ArrayList<Block>(sampleBlocks);
+    else
+      start(codecFactory);
+
+    open = true;
+    return this;
+  }
+
+  // Now that the codec is known, write the header and get ready for blocks.
+  private void start(CodecFactory chosen) throws IOException {
+    codec = new BlockCodec(chosen);
+    writeHeader();
+
+    if(compressionThreads > 1) {
+      maxInFlightBlocks = Math.max(maxInFlightBlocks, compressionThreads);
+      codecs = new ArrayBlockingQueue<BlockCodec>(compressionThreads);
+      for(int i = 0; i < compressionThreads; i++)
+        codecs.add(new BlockCodec(chosen));
+      compressors = Executors.newFixedThreadPool(compressionThreads, new ThreadFactory() {
+        private int count = 0;
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "haivvreo-block-compressor-" + count++);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    if(maxInFlightBlocks > 0) {
+      toWrite = new ArrayBlockingQueue<Block>(maxInFlightBlocks);
+      // Enough blocks for every slot in the queue, the one being written
+      // and the one being filled.
+      free = new ArrayBlockingQueue<Block>(maxInFlightBlocks + 1);
+      for(int i = 0; i < maxInFlightBlocks; i++)
+        free.add(newBlock());
+      writerThread = new Thread(new BlockWriter(), "haivvreo-block-writer");
+      writerThread.setDaemon(true);
+      writerThread.start();
+    }
+  }
+
+  private void writeHeader() throws IOException {
+    Map<String, byte[]> header = new HashMap<String, byte[]>(meta);
+    header.put(DataFileConstants.SCHEMA, utf8(schema.toString()));
+    header.put(DataFileConstants.CODEC, utf8(codec.getName()));
+
+    out.write(DataFileConstants.MAGIC);
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+    encoder.writeMapStart();
+    encoder.setItemCount(header.size());
+    for(Map.Entry<String, byte[]> e : header.entrySet()) {
+      encoder.startItem();
+      encoder.writeString(e.getKey());
+      encoder.writeBytes(e.getValue());
+    }
+    encoder.writeMapEnd();
+    encoder.writeFixed(sync);
+    encoder.flush();
+  }
+
+  // Choose the codec by the samples held so far, then write them out.
+  private void chooseCodec() throws IOException {
+    List<ByteBuffer> sampleData = new ArrayList<ByteBuffer>(samples.size());
+    for(Block sample : samples)
+      sampleData.add(ByteBuffer.wrap(sample.getData(), 0, sample.size()));
+    CodecFactory chosen = codecSelector.choose(sampleData);
+    LOG.info("Chose codec " + chosen + " from a sample of " + samples.size() + " blocks");
+
+    meta.put(CHOSEN_CODEC, utf8(chosen.toString()));
+    start(chosen);
+    // The pipeline's blocks are all accounted for, so write these directly.
+    for(Block sample : samples) {
+      writeBlock(sample);
+      recycle(sample);
+    }
+    samples = null;
+  }
+
+  public void append(GenericRecord record) throws IOException {
+    startRecord();
+    int length = current.size();
+    // Buffered, so the block's synchronized writes are made once a record.
+    if(encoding != current) {
+      recordEncoder = EncoderFactory.get().binaryEncoder(current, recordEncoder);
+      encoding = current;
+    }
+    try {
+      gdw.write(record, recordEncoder);
+    } catch (IOException e) {
+      discardRecord(length);
+      throw e;
+    } catch (RuntimeException e) {
+      discardRecord(length);
+      throw e;
+    }
+    recordEncoder.flush();
+    recordAppended();
+  }
+
+  // Don't leave half a record in the block, or in the encoder's buffer.
+  private void discardRecord(int length) throws IOException {
+    recordEncoder.flush();
+    current.truncate(length);
+  }
+
+  /**
+   * Append a record already encoded in this writer's schema, copying its
+   * bytes as they are.
+   */
+  public void appendEncoded(ByteBuffer datum) throws IOException {
+    startRecord();
+    current.write(datum.array(), datum.arrayOffset() + datum.position(), datum.remaining());
+    recordAppended();
+  }
+
+  private void startRecord() throws IOException {
+    assertOpen();
+    // Start small, so writers that get few records hold little memory.
+    if(memory != null && current.capacity() == 0)
+      current.adopt(memory.takeBuffer(Math.min(blockLimit, INITIAL_MANAGED_BUFFER)));
+  }
+
+  private void recordAppended() throws IOException {
+    current.records++;
+    if(memory != null) {
+      countMemory(current);
+      if(flushRequested)
+        flushForMemory();
+    }
+    if(current.size() >= blockLimit || current.records >= maxBlockRecords) {
+      finishBlock();
+      blockLimit = computeBlockLimit();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if(!open) return;
+    open = false;
+    boolean succeeded = false;
+    try {
+      try {
+        if(current.records > 0)
+          finishBlock();
+        if(samples != null)
+          chooseCodec(); // Didn't fill enough blocks to have chosen yet
+      } finally {
+        if(writerThread != null)
+          stopWriter();
+        if(compressors != null)
+          compressors.shutdownNow();
+        if(memory != null) {
+          recycle(current);
+          memory.unregister(this);
+        }
+      }
+      checkFailure();
+      out.flush();
+      succeeded = true;
+    } finally {
+      // Don't let a failure to close hide whatever went wrong first.
+      if(succeeded)
+        out.close();
+      else
+        IOUtils.closeStream(out);
+    }
+  }
+
+  // Let the writer thread finish off the blocks it has and wait for it.  If
+  // it's already died, there's nothing to wait for; checkFailure says why.
+  private void stopWriter() throws IOException {
+    try {
+      while(writerThread.isAlive() && !toWrite.offer(END, LIVENESS_CHECK_MS, TimeUnit.MILLISECONDS)) {
+        // Still busy writing
+      }
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for blocks to be written", e);
+    }
+  }
+
+  private void finishBlock() throws IOException {
+    if(samples != null) {
+      samples.add(current);
+      current = newBlock();
+      if(samples.size() >= sampleBlocks)
+        chooseCodec();
+      return;
+    }
+
+    if(writerThread == null) {
+      writeBlock(current);
+      recycle(current);
+      return;
+    }
+
+    checkFailure();
+    if(compressors != null)
+      current.compressed = compressors.submit(new Compression(current));
+    put(current);
+    try {
+      Block next;
+      while((next = free.poll(LIVENESS_CHECK_MS, TimeUnit.MILLISECONDS)) == null)
+        checkWriterAlive();
+      current = next;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for a free block", e);
+    }
+  }
+
+  // With memory managed, blocks only take a buffer once there's something
+  // to put in it.
+  private Block newBlock() {
+    Block block = new Block();
+    if(memory != null) block.release();
+    return block;
+  }
+
+  // Empty a written block for reuse, handing its buffer back if managed.
+  private void recycle(Block block) {
+    if(memory == null) {
+      block.reset();
+      return;
+    }
+    memory.returnBuffer(block.release());
+    countMemory(block);
+  }
+
+  private void countMemory(Block block) {
+    long capacity = block.capacity();
+    if(capacity != block.counted) {
+      long delta = capacity - block.counted;
+      block.counted = capacity;
+      memory.adjust(this, delta);
+    }
+  }
+
+  /**
+   * Finish the current block now, to free memory, or if called from other
+   * than the appending thread, on the next append.
+   */
+  void flushForMemory() throws IOException {
+    if(Thread.currentThread() != owner) {
+      flushRequested = true;
+      return;
+    }
+    flushRequested = false;
+    if(open && current.records > 0)
+      finishBlock();
+  }
+
+  private void put(Block block) throws IOException {
+    try {
+      while(!toWrite.offer(block, LIVENESS_CHECK_MS, TimeUnit.MILLISECONDS))
+        checkWriterAlive();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting to write block", e);
+    }
+  }
+
+  // Rethrow, on the appending thread, anything that went wrong writing blocks.
+  private void checkFailure() throws IOException {
+    if(failure != null)
+      throw new IOException("Unable to write block", failure);
+  }
+
+  // A writer thread that's died will never take or hand back another block.
+  private void checkWriterAlive() throws IOException {
+    if(!writerThread.isAlive()) {
+      checkFailure();
+      throw new IOException("Block writer thread has stopped");
+    }
+  }
+
+  private void writeBlock(Block block) throws IOException {
+    ByteBuffer compressed = block.compressed == null ? compress(codec, block) : waitFor(block.compressed);
+    int headerLength = BinaryData.encodeLong(block.records, blockHeader, 0);
+    headerLength += BinaryData.encodeLong(compressed.remaining(), blockHeader, headerLength);
+    out.write(blockHeader, 0, headerLength);
+    out.write(compressed.array(), compressed.arrayOffset() + compressed.position(), compressed.remaining());
+    out.write(sync);
+  }
+
+  private ByteBuffer compress(BlockCodec codec, Block block) throws IOException {
+    ByteBuffer compressed = codec.compress(ByteBuffer.wrap(block.getData(), 0, block.size()));
+    if(block.size() > 0)
+      observeCompression((double) compressed.remaining() / block.size());
+    return compressed;
+  }
+
+  // Blocks may be compressed on any thread, but are only sized on the task's.
+  private synchronized void observeCompression(double ratio) {
+    // Weighted towards recent blocks, so it follows changes in the data.
+    compressionRatio = compressionRatio < 0 ? ratio : 0.75 * compressionRatio + 0.25 * ratio;
+  }
+
+  private synchronized int computeBlockLimit() {
+    if(targetBlockSize == 0) return syncInterval;
+    // Guard against data that compresses absurdly well blowing up the buffers.
+    double ratio = compressionRatio < 0 ? 1.0 : Math.max(compressionRatio, 1.0 / 64);
+    return (int) Math.min(targetBlockSize / ratio, 1 << 30);
+  }
+
+  private static ByteBuffer waitFor(Future<ByteBuffer> compressed) throws IOException {
+    try {
+      return compressed.get();
+    } catch (ExecutionException e) {
+      if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      throw new IOException("Unable to compress block", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for block to be compressed", e);
+    }
+  }
+
+  // Compresses a block with whichever of the pool's codecs is free.
+  private class Compression implements Callable<ByteBuffer> {
+    private final Block block;
+
+    Compression(Block block) {
+      this.block = block;
+    }
+
+    @Override
+    public ByteBuffer call() throws IOException, InterruptedException {
+      BlockCodec c = codecs.take();
+      try {
+        return compress(c, block);
+      } finally {
+        codecs.add(c);
+      }
+    }
+  }
+
+  /**
+   * Writes completed blocks in the order they were finished.  After a failure
+   * it keeps taking blocks, without writing them, so the task never waits on
+   * it forever; the failure is reported on the next append or close.
+   */
+  private class BlockWriter implements Runnable {
+    @Override
+    public void run() {
+      try {
+        writeBlocks();
+      } catch (Throwable t) {
+        // Dying; the task notices when it next waits on this thread.
+        LOG.error("Block writer stopped", t);
+        if(failure == null) failure = t;
+      }
+    }
+
+    private void writeBlocks() {
+      while(true) {
+        Block block;
+        try {
+          block = toWrite.take();
+        } catch (InterruptedException e) {
+          failure = e;
+          return;
+        }
+        if(block == END) return;
+
+        if(failure == null) {
+          try {
+            writeBlock(block);
+          } catch (Throwable t) {
+            LOG.error("Unable to write block", t);
+            failure = t;
+          }
+        } else if(block.compressed != null) {
+          // Don't hand the block back while it's still being read.
+          try {
+            waitFor(block.compressed);
+          } catch (IOException e) {
+            // Already failed; this is no news
+          }
+        }
+        recycle(block);
+        free.add(block);
+      }
+    }
+  }
+
+  private void assertOpen() {
+    if(!open) throw new IllegalStateException("Writer has not been created or has been closed");
+  }
+
+  private void assertNotOpen() {
+    if(open) throw new IllegalStateException("Writer has already been created");
+  }
+
+  /**
+   * Avro only hands codecs out to DataFileWriter, and in some versions of
+   * Avro (including the one bundled into hive-exec) they aren't public, so
+   * reach in for one and call it reflectively.  Whether that works is checked
+   * once, up front: if it doesn't, {@link #isAvailable} says so and files
+   * are written with DataFileWriter instead.  Codecs are not thread safe.
+   */
+  static class BlockCodec {
+    private static final Method CREATE_INSTANCE;
+    private static final Method COMPRESS;
+    private static final Method GET_NAME;
+
+    static {
+      Method createInstance = null;
+      Method compress = null;
+      Method getName = null;
+      try {
+        createInstance = CodecFactory.class.getDeclaredMethod("createInstance");
+        createInstance.setAccessible(true);
+        Class<?> codecClass = Class.forName("org.apache.avro.file.Codec");
+        compress = codecClass.getDeclaredMethod("compress", ByteBuffer.class);
+        compress.setAccessible(true);
+        getName = codecClass.getDeclaredMethod("getName");
+        getName.setAccessible(true);
+
+        // Try them out, on the simplest codec there is.
+        Object codec = createInstance.invoke(CodecFactory.nullCodec());
+        if(!DataFileConstants.NULL_CODEC.equals(getName.invoke(codec))
+            || compress.invoke(codec, ByteBuffer.allocate(1)) == null)
+          throw new IllegalStateException("Avro's null codec doesn't behave as expected");
+      } catch (Exception e) {
+        LOG.warn("Unable to use Avro's codecs directly; Avro files will be written with DataFileWriter.", e);
+        createInstance = compress = getName = null;
+      }
+      CREATE_INSTANCE = createInstance;
+      COMPRESS = compress;
+      GET_NAME = getName;
+    }
+
+    private final Object codec;
+    private final String name;
+
+    /**
+     * @return whether this version of Avro's codecs can be used by BlockCodec
+     */
+    static boolean isAvailable() {
+      return CREATE_INSTANCE != null;
+    }
+
+    BlockCodec(CodecFactory factory) throws IOException {
+      if(!isAvailable())
+        throw new IOException("Avro's codecs can't be used directly in this JVM");
+      try {
+        codec = CREATE_INSTANCE.invoke(factory);
+        name = (String) GET_NAME.invoke(codec);
+      } catch (Exception e) {
+        throw new IOException("Unable to create codec " + factory, e);
+      }
+    }
+
+    String getName() {
+      return name;
+    }
+
+    /**
+     * @return the compressed data, which may share the input's array
+     */
+    ByteBuffer compress(ByteBuffer data) throws IOException {
+      try {
+        return (ByteBuffer) COMPRESS.invoke(codec, data);
+      } catch (InvocationTargetException e) {
+        if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+        throw new IOException("Unable to compress with " + name, e.getCause());
+      } catch (IllegalAccessException e) {
+        throw new IOException("Unable to compress with " + name, e);
+      }
+    }
+  }
+
+  private static byte[] utf8(String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e); // UTF-8 is always supported
+    }
+  }
+}
@@ -85,6 +85,26 @@ class AvroDeserializer {
     }
   }
 
+  /**
+   * The last row deserialized on this thread and the record it came from.
+   * If that same row object reaches an AvroSerializer for the same schema,
+   * it passed through the query untouched, and the record can be written
+   * out as it is rather than converted back from the row.
+   */
+  static class LastRow {
+    Object row;
+    Schema schema;
+    GenericRecord record;
+    AvroGenericRecordWritable source;
+  }
+
+  static final ThreadLocal<LastRow> lastRow = new ThreadLocal<LastRow>() {
+    @Override
+    protected LastRow initialValue() {
+      return new LastRow();
+    }
+  };
+
   private List<Object> row;
   private SchemaReEncoder reEncoder;
 
@@ -107,6 +127,9 @@ class AvroDeserializer {
     if(!(writable instanceof AvroGenericRecordWritable))
       throw new HaivvreoException("Expecting a AvroGenericRecordWritable");
 
+    LastRow last = lastRow.get();
+    last.row = null; // Until this one is complete
+
     if(row == null || row.size() != columnNames.size())
       row = new ArrayList<Object>(columnNames.size());
     else
@@ -127,6 +150,11 @@ class AvroDeserializer {
     }
 
     workerBase(row, columnNames, columnTypes, r);
+
+    last.row = row;
+    last.schema = readerSchema;
+    last.record = r;
+    last.source = recordWritable;
     return row;
   }
 
@@ -17,9 +17,13 @@ package com.linkedin.haivvreo;
 
 import org.apache.avro.Schema;
 import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.SeekableInput;
 import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericDatumReader;
 import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DecoderFactory;
 import org.apache.avro.mapred.FsInput;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -32,7 +36,9 @@ import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.mapred.*;
 
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.Properties;
 
@@ -43,11 +49,25 @@ import java.util.Properties;
 public class AvroGenericRecordReader implements RecordReader<NullWritable, AvroGenericRecordWritable>, JobConfigurable {
   private static final Log LOG = LogFactory.getLog(AvroGenericRecordReader.class);
 
-  final private org.apache.avro.file.FileReader<GenericRecord> reader;
+  /**
+   * If true, hand out records as their encoded bytes, leaving them to be
+   * decoded only when (and if) they're used.
+   */
+  public static final String LAZY_DECODE = "haivvreo.reader.lazy";
+
+  final private BlockDataFileReader reader;
   final private long start;
   final private long stop;
   protected JobConf jobConf;
 
+  // For lazy decoding: the current block, where the next record starts
+  // within it and how many records remain.
+  final private boolean lazy;
+  final private Schema readerSchema;
+  final private PositionedByteArrayInputStream blockStream = new PositionedByteArrayInputStream();
+  private BinaryDecoder skippingDecoder;
+  private long recordsLeftInBlock = 0;
+
   public AvroGenericRecordReader(JobConf job, FileSplit split, Reporter reporter) throws IOException {
     this.jobConf = job;
     Schema latest;
@@ -62,10 +82,12 @@ public class AvroGenericRecordReader implements RecordReader<NullWritable, AvroG
 
     if(latest != null) gdr.setExpected(latest);
 
-    this.reader = new DataFileReader<GenericRecord>(new FsInput(split.getPath(), job), gdr);
+    this.reader = new BlockDataFileReader(new FsInput(split.getPath(), job), gdr);
     this.reader.sync(split.getStart());
     this.start = reader.tell();
     this.stop = split.getStart() + split.getLength();
+    this.lazy = job.getBoolean(LAZY_DECODE, false);
+    this.readerSchema = latest;
   }
 
   /**
@@ -104,7 +126,7 @@ public class AvroGenericRecordReader implements RecordReader<NullWritable, AvroG
     String s = job.get(AvroSerDe.HAIVVREO_SCHEMA);
     if(s != null) {
       LOG.info("Found the avro schema in the job: " + s);
-      return Schema.parse(s);
+      return SchemaInterner.parse(s);
     }
     // No more places to get the schema from. Give up.  May have to re-encode later.
     return null;
@@ -117,6 +139,8 @@ public class AvroGenericRecordReader implements RecordReader<NullWritable, AvroG
 
   @Override
   public boolean next(NullWritable nullWritable, AvroGenericRecordWritable record) throws IOException {
+    if(lazy) return nextEncoded(record);
+
     if(!reader.hasNext() || reader.pastSync(stop)) return false;
 
     GenericData.Record r = (GenericData.Record)reader.next();
@@ -125,6 +149,68 @@ public class AvroGenericRecordReader implements RecordReader<NullWritable, AvroG
     return true;
   }
 
+  // Rather than decoding each record, find where it ends by skipping over it
+  // and hand the writable its bytes.
+  private boolean nextEncoded(AvroGenericRecordWritable record) throws IOException {
+    while(recordsLeftInBlock == 0) {
+      if(!reader.hasNext() || reader.pastSync(stop)) return false;
+
+      recordsLeftInBlock = reader.getBlockCount();
+      // The reader reuses its block buffer, and the writable holds on to
+      // the bytes we give it, so each block gets its own copy.
+      ByteBuffer block = reader.nextWholeBlock();
+      byte[] bytes = new byte[block.remaining()];
+      block.get(bytes);
+      blockStream.reset(bytes);
+      skippingDecoder = DecoderFactory.get().directBinaryDecoder(blockStream, skippingDecoder);
+    }
+
+    int recordStart = blockStream.position();
+    GenericDatumReader.skip(reader.getSchema(), skippingDecoder);
+    record.setEncoded(reader.getSchema(), readerSchema, blockStream.buffer(), recordStart, blockStream.position() - recordStart);
+    recordsLeftInBlock--;
+
+    return true;
+  }
+
+  /**
+   * DataFileReader only notes where the next block starts, which pastSync
+   * relies on, as the last record of a block is read.  When we take the
+   * block whole, we need to tell it we're done with it ourselves.
+   */
+  private static class BlockDataFileReader extends DataFileReader<GenericRecord> {
+    BlockDataFileReader(SeekableInput in, DatumReader<GenericRecord> datumReader) throws IOException {
+      super(in, datumReader);
+    }
+
+    ByteBuffer nextWholeBlock() throws IOException {
+      ByteBuffer block = nextBlock();
+      blockFinished();
+      return block;
+    }
+  }
+
+  private static class PositionedByteArrayInputStream extends ByteArrayInputStream {
+    PositionedByteArrayInputStream() {
+      super(new byte[0]);
+    }
+
+    void reset(byte[] bytes) {
+      this.buf = bytes;
+      this.pos = 0;
+      this.count = bytes.length;
+      this.mark = 0;
+    }
+
+    int position() {
+      return pos;
+    }
+
+    byte[] buffer() {
+      return buf;
+    }
+  }
+
   @Override
   public NullWritable createKey() {
     return NullWritable.get();
@@ -132,7 +218,9 @@ public class AvroGenericRecordReader implements RecordReader<NullWritable, AvroG
 
   @Override
   public AvroGenericRecordWritable createValue() {
-    return new AvroGenericRecordWritable();
+    AvroGenericRecordWritable value = new AvroGenericRecordWritable();
+    if(jobConf != null) value.setConf(jobConf);
+    return value;
   }
 
   @Override
@@ -16,40 +16,156 @@
 package com.linkedin.haivvreo;
 
 
+import org.apache.avro.AvroRuntimeException;
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericDatumReader;
 import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryData;
 import org.apache.avro.io.BinaryDecoder;
 import org.apache.avro.io.BinaryEncoder;
 import org.apache.avro.io.DecoderFactory;
 import org.apache.avro.io.EncoderFactory;
-import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapred.JobConf;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Wrapper around an Avro GenericRecord.  Necessary because Hive's deserializer
  * will happily deserialize any object - as long as it's a writable.
+ *
+ * When written, records are identified by a fingerprint of their schema (see
+ * {@link SchemaTable}).  The schema's text follows the fingerprint unless the
+ * schema has been shared with every task in the job, followed by the length
+ * of the encoded record and the record itself.
+ *
+ * Records read in are held as their encoded bytes and only decoded when
+ * first asked for, so records that are never looked at are never decoded.
+ *
+ * Records sort in Avro's order for their schema, and a raw comparator is
+ * registered that compares them in their encoded form, so they can be used
+ * as keys without being decoded during the sort.  Records of different
+ * schemas sort by the fingerprint of their schema.  Jobs whose keys are
+ * written with shared schemas should also set the comparator as their own
+ * (see {@link Comparator#setOutputKeyComparator}), so that it's given the
+ * job's configuration.
  */
-public class AvroGenericRecordWritable implements Writable{
+public class AvroGenericRecordWritable implements WritableComparable<AvroGenericRecordWritable>, Configurable {
   GenericRecord record;
+  private Configuration conf;
+
+  // Encoded form of the record, if it hasn't been decoded (or set) yet.
+  private byte[] encoded;
+  private int encodedOffset;
+  private int encodedLength;
+  private Schema encodedSchema; // Schema the bytes were written with. Null if no bytes.
+  private Schema expectedSchema; // Schema to decode them into.
+
+  // Whether the two schemas above are equal, so the bytes need no resolving,
+  // worked out once per pair: a file's schema and the table's are usually
+  // equal but parsed separately.
+  private Schema comparedEncodedSchema;
+  private Schema comparedExpectedSchema;
+  private boolean encodedAsExpected;
+
+  // Fingerprint of the last schema written, and whether it's shared with the
+  // job of our configuration, to avoid working them out per record
+  private Schema lastWrittenSchema;
+  private long lastWrittenFingerprint;
+  private boolean lastWrittenShared;
+
+  // Writables are reused from record to record, and records of a given
+  // writable almost always share a schema, so hang on to the machinery.
+  private final GenericDatumWriter<GenericRecord> gdw = new GenericDatumWriter<GenericRecord>();
+  private final DataOutputBuffer encodeBuffer = new DataOutputBuffer();
+  private byte[] readBuffer = new byte[0];
+  private BinaryEncoder binaryEncoder;
   private BinaryDecoder binaryDecoder;
+  private GenericDatumReader<GenericRecord> gdr;
+  private Schema gdrWriterSchema;
+  private Schema gdrReaderSchema;
+  private Schema writerSchema;
+  // Only records we decoded ourselves are fair game for reuse.
+  private GenericRecord decodedRecord;
 
-  // There are two areas of exploration for optimization here.
-  // 1.  We're serializing the schema with every object.  If we assume the schema
-  //     provided by the table is always correct, we don't need to do this and
-  //     and can just send the serialized bytes.
-  // 2.  We serialize/deserialize to/from bytes immediately.  We may save some
-  //     time but doing this lazily, but until there's evidence this is useful,
-  //     it's not worth adding the extra state.
+  /**
+   * @return the record, decoding it first if it's still held as bytes.
+   */
   public GenericRecord getRecord() {
+    if(record == null && encodedSchema != null) {
+      try {
+        record = decode();
+      } catch (IOException e) {
+        throw new AvroRuntimeException("Unable to decode record of schema " + encodedSchema.getFullName(), e);
+      }
+    }
     return record;
   }
 
   public void setRecord(GenericRecord record) {
     this.record = record;
+    this.encodedSchema = null;
+  }
+
+  /**
+   * Hold an encoded record, to be decoded when first asked for.  The bytes
+   * are not copied, so must not be changed while this writable refers to them.
+   * @param writerSchema schema the record was encoded with
+   * @param readerSchema schema to decode it into, or null for the writer's
+   */
+  public void setEncoded(Schema writerSchema, Schema readerSchema, byte[] bytes, int offset, int length) {
+    this.record = null;
+    this.encodedSchema = writerSchema;
+    this.expectedSchema = readerSchema == null ? writerSchema : readerSchema;
+    this.encoded = bytes;
+    this.encodedOffset = offset;
+    this.encodedLength = length;
+  }
+
+  /**
+   * Hold a record read in by another writable, along with its encoded bytes
+   * if the source still has them in the record's own schema, so that it can
+   * be written out without being encoded again.
+   * @param record the source's record, or what it was resolved to
+   */
+  void passThrough(AvroGenericRecordWritable source, GenericRecord record) {
+    this.record = record;
+    if(source.encodedSchema != null && source.isEncodedAsExpected()
+        && record == source.record && record.getSchema() == source.expectedSchema) {
+      this.encodedSchema = source.encodedSchema;
+      this.expectedSchema = source.expectedSchema;
+      this.encoded = source.encoded;
+      this.encodedOffset = source.encodedOffset;
+      this.encodedLength = source.encodedLength;
+    } else {
+      this.encodedSchema = null;
+    }
+  }
+
+  /**
+   * @return the record as encoded in its own schema, if it's still held so
+   * and hasn't since been replaced, else null
+   */
+  ByteBuffer getEncodedRecord() {
+    if(encodedSchema == null || !isEncodedAsExpected()) return null;
+    if(record != null && record.getSchema() != expectedSchema) return null;
+    return ByteBuffer.wrap(encoded, encodedOffset, encodedLength);
+  }
+
+  private boolean isEncodedAsExpected() {
+    if(encodedSchema != comparedEncodedSchema || expectedSchema != comparedExpectedSchema) {
+      encodedAsExpected = encodedSchema == expectedSchema || encodedSchema.equals(expectedSchema);
+      comparedEncodedSchema = encodedSchema;
+      comparedExpectedSchema = expectedSchema;
+    }
+    return encodedAsExpected;
   }
 
   public AvroGenericRecordWritable() {}
@@ -58,26 +174,207 @@ public class AvroGenericRecordWritable implements Writable{
     this.record = record;
   }
 
+  @Override
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+    this.lastWrittenSchema = null; // Whether it's shared may differ
+    SchemaTable.loadShared(conf);
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+  private GenericRecord decode() throws IOException {
+    if(encodedSchema != gdrWriterSchema || expectedSchema != gdrReaderSchema) {
+      gdr = new GenericDatumReader<GenericRecord>(encodedSchema, expectedSchema);
+      gdrWriterSchema = encodedSchema;
+      gdrReaderSchema = expectedSchema;
+    }
+    // Fill in the previous record, if it's of the same schema.
+    GenericRecord reuse = decodedRecord != null && decodedRecord.getSchema() == expectedSchema ? decodedRecord : null;
+    binaryDecoder = DecoderFactory.get().binaryDecoder(encoded, encodedOffset, encodedLength, binaryDecoder);
+    decodedRecord = gdr.read(reuse, binaryDecoder);
+    return decodedRecord;
+  }
+
   @Override
   public void write(DataOutput out) throws IOException {
-    // Write schema since we need it to pull the data out. (see point #1 above)
-    String schemaString = record.getSchema().toString(false);
-    out.writeUTF(schemaString);
+    // Still-encoded records can go straight back out, as long as they don't
+    // need resolving to a different schema first.
+    boolean passThrough = record == null && encodedSchema != null && isEncodedAsExpected();
+    Schema schema = passThrough ? encodedSchema : getRecord().getSchema();
+
+    if(schema != lastWrittenSchema) {
+      lastWrittenFingerprint = SchemaTable.fingerprint(schema);
+      lastWrittenShared = SchemaTable.isShared(conf, lastWrittenFingerprint);
+      lastWrittenSchema = schema;
+    }
+    out.writeLong(lastWrittenFingerprint);
 
-    // Write record to byte buffer
-    GenericDatumWriter<GenericRecord> gdw = new GenericDatumWriter<GenericRecord>();
-    BinaryEncoder be = EncoderFactory.get().directBinaryEncoder((DataOutputStream)out, null);
+    // Only the job we're configured for is sure to know the schema.
+    boolean inline = !lastWrittenShared;
+    out.writeBoolean(inline);
+    if(inline) {
+      // Not writeUTF, which can't handle schemas over 64k.
+      byte[] schemaBytes = schema.toString(false).getBytes("UTF-8");
+      out.writeInt(schemaBytes.length);
+      out.write(schemaBytes);
+    }
 
-    gdw.setSchema(record.getSchema());
-    gdw.write(record, be);
+    if(passThrough) {
+      out.writeInt(encodedLength);
+      out.write(encoded, encodedOffset, encodedLength);
+      return;
+    }
+
+    // Write record to byte buffer, then out with its length
+    encodeBuffer.reset();
+    binaryEncoder = EncoderFactory.get().directBinaryEncoder(encodeBuffer, binaryEncoder);
+    if(schema != writerSchema) {
+      gdw.setSchema(schema);
+      writerSchema = schema;
+    }
+    gdw.write(record, binaryEncoder);
+    out.writeInt(encodeBuffer.getLength());
+    out.write(encodeBuffer.getData(), 0, encodeBuffer.getLength());
   }
 
   @Override
   public void readFields(DataInput in) throws IOException {
-    Schema schema = Schema.parse(in.readUTF());
-    record = new GenericData.Record(schema);
-    binaryDecoder = DecoderFactory.defaultFactory().createBinaryDecoder((InputStream) in, binaryDecoder);
-    GenericDatumReader<GenericRecord> gdr = new GenericDatumReader<GenericRecord>(schema);
-    record = gdr.read(record, binaryDecoder);
+    long fingerprint = in.readLong();
+    Schema schema;
+    if(in.readBoolean()) {
+      byte[] schemaBytes = new byte[in.readInt()];
+      in.readFully(schemaBytes);
+      schema = SchemaTable.lookup(fingerprint);
+      if(schema == null)
+        schema = SchemaTable.register(fingerprint, SchemaInterner.parse(new String(schemaBytes, "UTF-8")));
+    } else {
+      schema = SchemaTable.lookupShared(conf, fingerprint); // Perhaps dropped from the table since we were configured
+      if(schema == null)
+        throw new IOException("Record was written with shared schema " + Long.toHexString(fingerprint)
+            + " but it is not known to this task. Has the job's configuration been provided?");
+    }
+
+    // Hold on to the bytes; they'll be decoded if and when they're needed.
+    int length = in.readInt();
+    if(readBuffer.length < length)
+      readBuffer = new byte[Math.max(length, readBuffer.length * 2)];
+    in.readFully(readBuffer, 0, length);
+    setEncoded(schema, null, readBuffer, 0, length);
+  }
+
+  @Override
+  public int compareTo(AvroGenericRecordWritable other) {
+    GenericRecord r1 = getRecord();
+    GenericRecord r2 = other.getRecord();
+    Schema s1 = r1.getSchema();
+    Schema s2 = r2.getSchema();
+    if(!s1.equals(s2)) {
+      long f1 = SchemaTable.fingerprint(s1);
+      long f2 = SchemaTable.fingerprint(s2);
+      return f1 < f2 ? -1 : (f1 == f2 ? 0 : 1);
+    }
+    return GenericData.get().compare(r1, r2, s1);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if(this == o) return true;
+    if(!(o instanceof AvroGenericRecordWritable)) return false;
+    GenericRecord r = getRecord();
+    GenericRecord other = ((AvroGenericRecordWritable)o).getRecord();
+    return r == null ? other == null : r.equals(other);
+  }
+
+  // Keys are partitioned by hash, so this has to follow the record's contents.
+  @Override
+  public int hashCode() {
+    GenericRecord r = getRecord();
+    return r == null ? 0 : r.hashCode();
+  }
+
+  /**
+   * Compares records as written by {@link AvroGenericRecordWritable#write},
+   * in Avro's binary sort order, without decoding them.
+   *
+   * It's registered for the class, so is what Hadoop sorts these keys with
+   * unless told otherwise, but the instance registered has no configuration:
+   * records written with a shared schema can only be compared by it once
+   * something in the JVM has loaded the job's shared schemas.  Set as the
+   * job's output key comparator instead (see {@link #setOutputKeyComparator}),
+   * Hadoop creates it with the job's configuration wherever it sorts or
+   * merges, whether or not a serde has been set up there.
+   */
+  public static class Comparator extends WritableComparator implements Configurable {
+    private Configuration conf;
+
+    public Comparator() {
+      super(AvroGenericRecordWritable.class);
+    }
+
+    /**
+     * Have the job sort its map output keys with this comparator.
+     */
+    public static void setOutputKeyComparator(JobConf job) {
+      job.setOutputKeyComparatorClass(Comparator.class);
+    }
+
+    @Override
+    public void setConf(Configuration conf) {
+      this.conf = conf;
+      SchemaTable.loadShared(conf);
+    }
+
+    @Override
+    public Configuration getConf() {
+      return conf;
+    }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      long f1 = readLong(b1, s1);
+      long f2 = readLong(b2, s2);
+      if(f1 != f2) return f1 < f2 ? -1 : 1;
+
+      // Same schema; skip past it to the records.
+      Schema schema = SchemaTable.lookup(f1);
+      int r1 = recordStart(b1, s1);
+      int r2 = recordStart(b2, s2);
+      if(schema == null) schema = schemaOf(b1, s1, f1);
+
+      return BinaryData.compare(b1, r1 + 4, readInt(b1, r1), b2, r2 + 4, readInt(b2, r2), schema);
+    }
+
+    // Offset of the record's length, past the fingerprint and any inline schema.
+    private static int recordStart(byte[] b, int s) {
+      int pos = s + 8;
+      boolean inline = b[pos++] != 0;
+      return inline ? pos + 4 + readInt(b, pos) : pos;
+    }
+
+    private Schema schemaOf(byte[] b, int s, long fingerprint) {
+      int pos = s + 8;
+      if(b[pos++] == 0) {
+        // Perhaps shared since we were configured; the configuration will say.
+        Schema schema = SchemaTable.lookupShared(conf, fingerprint);
+        if(schema != null) return schema;
+        throw new AvroRuntimeException("Record was written with shared schema " + Long.toHexString(fingerprint)
+            + " but it is not known to this task. Has the job set its output key comparator with "
+            + "Comparator.setOutputKeyComparator?");
+      }
+      try {
+        String text = new String(b, pos + 4, readInt(b, pos), "UTF-8");
+        return SchemaTable.register(fingerprint, SchemaInterner.parse(text));
+      } catch (UnsupportedEncodingException e) {
+        throw new RuntimeException(e); // UTF-8 is always supported
+      }
+    }
+  }
+
+  static {
+    WritableComparator.define(AvroGenericRecordWritable.class, new Comparator());
   }
 }
@@ -15,21 +15,74 @@
  */
 package com.linkedin.haivvreo;
 
+import org.apache.avro.Schema;
 import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hive.ql.exec.FileSinkOperator;
 import org.apache.hadoop.io.Writable;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Write an Avro GenericRecord to an Avro data file.
  */
 public class AvroGenericRecordWriter implements FileSinkOperator.RecordWriter{
+  // Exactly one of these is set
   final private DataFileWriter<GenericRecord> dfw;
+  final private AvroContainerWriter acw;
+  // Set if column stats are being collected
+  private ColumnStats[] stats = null;
+  private FileSystem statsFs;
+  private Path statsPath;
+  // Set if Bloom filters are being built, along with their columns' positions
+  private ColumnBloomFilter[] blooms = null;
+  private int[] bloomFields;
+  private FileSystem bloomFs;
+  private Path bloomPath;
+  // Set if either is, to read their values from records passed through as bytes
+  private EncodedFields encodedFields = null;
 
   public AvroGenericRecordWriter(DataFileWriter<GenericRecord> dfw) {
     this.dfw = dfw;
+    this.acw = null;
+  }
+
+  AvroGenericRecordWriter(AvroContainerWriter acw) {
+    this.dfw = null;
+    this.acw = acw;
+  }
+
+  /**
+   * Collect stats of each column of the records written, to write to
+   * statsPath when the writer is closed.
+   */
+  void collectStats(Schema schema, FileSystem fs, Path statsPath) {
+    this.stats = ColumnStats.forSchema(schema);
+    this.statsFs = fs;
+    this.statsPath = statsPath;
+    for(int i = 0; i < stats.length; i++)
+      encodedFields(schema).want(i);
+  }
+
+  /**
+   * Build Bloom filters of the values of the fields at these positions, to
+   * write to bloomPath when the writer is closed.
+   */
+  void buildBloomFilters(Schema schema, ColumnBloomFilter[] blooms, int[] fields, FileSystem fs, Path bloomPath) {
+    this.blooms = blooms;
+    this.bloomFields = fields;
+    this.bloomFs = fs;
+    this.bloomPath = bloomPath;
+    for(int field : fields)
+      encodedFields(schema).want(field);
+  }
+
+  private EncodedFields encodedFields(Schema schema) {
+    if(encodedFields == null) encodedFields = new EncodedFields(schema);
+    return encodedFields;
   }
 
   @Override
@@ -37,12 +90,44 @@ public class AvroGenericRecordWriter implements FileSinkOperator.RecordWriter{
     if(!(writable instanceof AvroGenericRecordWritable))
       throw new IOException("Expecting instance of AvroGenericRecordWritable, but received" + writable.getClass().getCanonicalName());
     AvroGenericRecordWritable r = (AvroGenericRecordWritable)writable;
-    dfw.append(r.getRecord());
+    // Records passed through unchanged from an Avro table are copied as they are.
+    ByteBuffer encoded = r.getEncodedRecord();
+    if(encodedFields != null) {
+      // Which leaves them undecoded, so only the fields counted are read from them.
+      Object[] values = encoded != null ? encodedFields.read(encoded) : null;
+      GenericRecord record = encoded != null ? null : r.getRecord();
+      if(stats != null)
+        for(int i = 0; i < stats.length; i++)
+          stats[i].add(values != null ? values[i] : record.get(i));
+      if(blooms != null)
+        for(int i = 0; i < blooms.length; i++)
+          blooms[i].add(values != null ? values[bloomFields[i]] : record.get(bloomFields[i]));
+    }
+    if(encoded != null) {
+      if(acw != null)
+        acw.appendEncoded(encoded);
+      else
+        dfw.appendEncoded(encoded);
+    } else if(acw != null) {
+      acw.append(r.getRecord());
+    } else {
+      dfw.append(r.getRecord());
+    }
   }
 
   @Override
   public void close(boolean abort) throws IOException {
-    dfw.close();
+    if(acw != null)
+      acw.close();
+    else
+      dfw.close();
+    if(stats != null && !abort)
+      ColumnStats.write(statsFs, statsPath, stats);
+    if(blooms != null && !abort) {
+      for(ColumnBloomFilter bloom : blooms)
+        bloom.fold();
+      ColumnBloomFilter.write(bloomFs, bloomPath, blooms);
+    }
   }
 
 }
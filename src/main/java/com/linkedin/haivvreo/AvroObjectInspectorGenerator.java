@@ -24,6 +24,7 @@ import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectIn
 import org.apache.hadoop.hive.serde2.typeinfo.*;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -32,17 +33,43 @@ import java.util.List;
  *   * A list of the schema field names
  *   * A list of those fields equivalent types in Hive
  *   * An ObjectInspector capable of working with an instance of that datum.
+ *
+ * Generators depend only on their schema and don't change once built, so
+ * one is shared by everything working with a given schema (see
+ * {@link #forSchema}).
  */
 class AvroObjectInspectorGenerator {
   final private List<String> columnNames;
   final private List<TypeInfo> columnTypes;
   final private ObjectInspector oi;
 
+  private static final InstanceCache<Schema, AvroObjectInspectorGenerator> generators =
+      new InstanceCache<Schema, AvroObjectInspectorGenerator>() {
+        @Override
+        protected AvroObjectInspectorGenerator makeInstance(Schema schema) throws HaivvreoException {
+          try {
+            return new AvroObjectInspectorGenerator(schema);
+          } catch (HaivvreoException e) {
+            throw e;
+          } catch (SerDeException e) {
+            throw new HaivvreoException(e);
+          }
+        }
+      };
+
+  /**
+   * @return the generator for this schema, building it only if no equal
+   * schema has had one built
+   */
+  public static AvroObjectInspectorGenerator forSchema(Schema schema) throws SerDeException {
+    return generators.retrieve(schema);
+  }
+
   public AvroObjectInspectorGenerator(Schema schema) throws SerDeException {
     verifySchemaIsARecord(schema);
 
-    this.columnNames = generateColumnNames(schema);
-    this.columnTypes = SchemaToTypeInfo.generateColumnTypes(schema);
+    this.columnNames = Collections.unmodifiableList(generateColumnNames(schema));
+    this.columnTypes = Collections.unmodifiableList(SchemaToTypeInfo.generateColumnTypes(schema));
     assert columnNames.size() == columnTypes.size();
     this.oi = createObjectInspector();
   }
@@ -16,13 +16,11 @@
 package com.linkedin.haivvreo;
 
 import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hive.ql.exec.Utilities;
-import org.apache.hadoop.hive.ql.plan.MapWork;
-import org.apache.hadoop.hive.ql.plan.PartitionDesc;
-import org.apache.hadoop.hive.ql.plan.TableDesc;
 import org.apache.hadoop.hive.serde2.SerDe;
 import org.apache.hadoop.hive.serde2.SerDeException;
 import org.apache.hadoop.hive.serde2.SerDeStats;
@@ -31,9 +29,7 @@ import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.JobConf;
 
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -43,14 +39,28 @@ public class AvroSerDe implements SerDe {
   private static final Log LOG = LogFactory.getLog(AvroSerDe.class);
 
   public static final String HAIVVREO_SCHEMA = "haivvreo.schema";
+  public static final String VALIDATION_MODE = "haivvreo.validation.mode";
+  public static final String VALIDATION_SAMPLE_INTERVAL = "haivvreo.validation.sample.interval";
+  public static final String REUSE_RECORDS = "haivvreo.serializer.reuse.records";
+  public static final String PASS_THROUGH = "haivvreo.serializer.passthrough";
   private ObjectInspector oi;
   private List<String> columnNames;
   private List<TypeInfo> columnTypes;
   private Schema schema;
   private AvroDeserializer avroDeserializer = null;
   private AvroSerializer avroSerializer = null;
+  private AvroSerializer.ValidationMode validationMode = AvroSerializer.ValidationMode.FULL;
+  private int sampleInterval = AvroSerializer.DEFAULT_SAMPLE_INTERVAL;
+  private boolean reuseRecords = false;
+  private boolean passThrough = false;
 
   private boolean badSchema = false;
+  private TableIndex tableIndex = null; // Inside a job, the plan's tables
+  private Configuration configuration = null; // Records are written for its job
+
+  // Record last serialized or deserialized, sized only if stats are asked for
+  private GenericRecord lastRecord = null;
+  private final SerDeStats stats = new SerDeStats();
 
   @Override
   public void initialize(Configuration configuration, Properties properties) throws SerDeException {
@@ -63,21 +73,64 @@ public class AvroSerDe implements SerDe {
     columnNames  = null;
     columnTypes = null;
 
+    this.configuration = configuration;
     properties = determineCorrectProperties(configuration, properties);
 
-    schema =  HaivvreoUtils.determineSchemaOrReturnErrorSchema(configuration, properties);
+    schema = tableIndex != null ? tableIndex.getSchema(configuration, properties)
+                                : HaivvreoUtils.determineSchemaOrReturnErrorSchema(configuration, properties);
+    badSchema = schema.equals(SchemaResolutionProblem.SIGNAL_BAD_SCHEMA);
+
     if(configuration == null) {
       LOG.info("Configuration null, not inserting schema");
     } else {
       configuration.set(HAIVVREO_SCHEMA, schema.toString(false));
+      shareSchema(configuration, properties);
     }
 
-    badSchema = schema.equals(SchemaResolutionProblem.SIGNAL_BAD_SCHEMA);
-
-    AvroObjectInspectorGenerator aoig = new AvroObjectInspectorGenerator(schema);
+    AvroObjectInspectorGenerator aoig = AvroObjectInspectorGenerator.forSchema(schema);
     this.columnNames = aoig.getColumnNames();
     this.columnTypes = aoig.getColumnTypes();
     this.oi = aoig.getObjectInspector();
+
+    determineValidationSettings(configuration, properties);
+    reuseRecords = Boolean.parseBoolean(HaivvreoUtils.getTableOrJobProperty(configuration, properties, REUSE_RECORDS, "false").trim());
+    passThrough = Boolean.parseBoolean(HaivvreoUtils.getTableOrJobProperty(configuration, properties, PASS_THROUGH, "false").trim());
+    avroSerializer = null; // Pick up any changed settings on next serialize
+    lastRecord = null;
+  }
+
+  // Validation settings are optional, so a bad value shouldn't leave the
+  // table unusable.  Complain and fall back to full validation instead.
+  private void determineValidationSettings(Configuration configuration, Properties properties) {
+    String mode = HaivvreoUtils.getTableOrJobProperty(configuration, properties, VALIDATION_MODE, null);
+    String interval = HaivvreoUtils.getTableOrJobProperty(configuration, properties, VALIDATION_SAMPLE_INTERVAL, null);
+    try {
+      validationMode = mode == null ? AvroSerializer.ValidationMode.FULL : AvroSerializer.ValidationMode.fromString(mode);
+      sampleInterval = interval == null ? AvroSerializer.DEFAULT_SAMPLE_INTERVAL : Integer.parseInt(interval.trim());
+      if(sampleInterval < 1)
+        throw new HaivvreoException("Sample interval must be positive: " + sampleInterval);
+    } catch(Exception e) {
+      LOG.warn("Invalid validation settings (" + VALIDATION_MODE + " = " + mode + ", " + VALIDATION_SAMPLE_INTERVAL
+          + " = " + interval + "). Falling back to full validation.", e);
+      validationMode = AvroSerializer.ValidationMode.FULL;
+      sampleInterval = AvroSerializer.DEFAULT_SAMPLE_INTERVAL;
+    }
+  }
+
+  // Outside of a job, the configuration we're given is the one jobs will be
+  // created from, so share the schema with them to save writing it out with
+  // every record that is shuffled, and to save every task reading it from
+  // its schema.url.  Inside a job, pick up what was shared.
+  private void shareSchema(Configuration configuration, Properties properties) {
+    if((configuration instanceof JobConf) && HaivvreoUtils.insideMRJob((JobConf) configuration)) {
+      SchemaTable.loadShared(configuration);
+    } else if(!badSchema) {
+      String url = HaivvreoUtils.getSchemaUrl(properties);
+      if(url != null)
+        SchemaTable.shareUrl(configuration, url, schema);
+      else
+        SchemaTable.share(configuration, schema);
+    }
   }
 
   // Hive passes different properties in at different times.  If we're in a MR job,
@@ -87,32 +140,18 @@ public class AvroSerDe implements SerDe {
   // Also, in join queries, multiple properties will be included, so we need
   // to extract out the one appropriate to the table we're serde'ing.
   private Properties determineCorrectProperties(Configuration configuration, Properties properties) {
+    tableIndex = null;
     if((configuration instanceof JobConf) && HaivvreoUtils.insideMRJob((JobConf) configuration)) {
-      LOG.info("In MR job, extracting table-level properties");
-      MapWork mapWork = Utilities.getMapWork(configuration);
-      LinkedHashMap<String, PartitionDesc> a = mapWork.getAliasToPartnInfo();
-      if(a.size() == 1) {
-        LOG.info("Only one PartitionDesc found.  Returning that Properties");
-        PartitionDesc p = a.values().iterator().next();
-        TableDesc tableDesc = p.getTableDesc();
-        return tableDesc.getProperties();
-      } else {
-        String tableName = properties.getProperty("name");
-        LOG.info("Multiple PartitionDescs.  Return properties for " + tableName);
-
-        for (Map.Entry<String, PartitionDesc> partitionDescs : a.entrySet()) {
-          Properties p = partitionDescs.getValue().getTableDesc().getProperties();
-          if(p.get("name").equals(tableName)) {
-            // We've found the matching table partition
-            LOG.info("Matched table name against " + partitionDescs.getKey() + ", return its properties");
-            return p;
-          }
-        }
-        // Didn't find anything in partitions to match on.  WARN, at least.
-        LOG.warn("Couldn't find any matching properties for table: " +
-                tableName + ". Returning original properties");
+      tableIndex = TableIndex.forPlan(Utilities.getMapWork(configuration));
+      String tableName = properties.getProperty("name");
+      Properties p = tableIndex.getTableProperties(tableName);
+      if(p != null) {
+        if(LOG.isDebugEnabled()) LOG.debug("In MR job, using table-level properties for " + tableName);
+        return p;
       }
-
+      // Didn't find anything in partitions to match on.  WARN, at least.
+      LOG.warn("Couldn't find any matching properties for table: " +
+              tableName + ". Returning original properties");
     }
     return properties;
   }
@@ -125,13 +164,18 @@ public class AvroSerDe implements SerDe {
   @Override
   public Writable serialize(Object o, ObjectInspector objectInspector) throws SerDeException {
     if(badSchema) throw new BadSchemaException();
-    return getSerializer().serialize(o, objectInspector, columnNames, columnTypes, schema);
+    AvroGenericRecordWritable w = (AvroGenericRecordWritable) getSerializer().serialize(o, objectInspector, columnNames, columnTypes, schema);
+    lastRecord = w.getRecord();
+    return w;
   }
 
   @Override
   public Object deserialize(Writable writable) throws SerDeException {
     if(badSchema) throw new BadSchemaException();
-    return getDeserializer().deserialize(columnNames, columnTypes, writable, schema);
+    Object row = getDeserializer().deserialize(columnNames, columnTypes, writable, schema);
+    AvroGenericRecordWritable w = (AvroGenericRecordWritable) writable;
+    lastRecord = w.getRecord();
+    return row;
   }
 
   @Override
@@ -139,10 +183,17 @@ public class AvroSerDe implements SerDe {
     return oi;
   }
 
+  /**
+   * Hive asks for stats after each row it serializes or deserializes, adding
+   * up their raw data sizes and counting the rows itself, so these are the
+   * stats of the last row only.  The size is the row's size in memory, as
+   * RawDataSize counts it, however the row came to be, so that rows read and
+   * rows written add up alike.
+   */
   @Override
   public SerDeStats getSerDeStats() {
-    // No support for statistics. That seems to be a popular answer.
-    return null;
+    stats.setRawDataSize(lastRecord == null ? 0 : RawDataSize.of(lastRecord, lastRecord.getSchema()));
+    return stats;
   }
 
   private AvroDeserializer getDeserializer() {
@@ -152,7 +203,10 @@ public class AvroSerDe implements SerDe {
   }
 
   private AvroSerializer getSerializer() {
-    if(avroSerializer == null) avroSerializer = new AvroSerializer();
+    if(avroSerializer == null) {
+      avroSerializer = new AvroSerializer(validationMode, sampleInterval, reuseRecords, passThrough);
+      if(configuration != null) avroSerializer.cache.setConf(configuration);
+    }
 
     return avroSerializer;
   }
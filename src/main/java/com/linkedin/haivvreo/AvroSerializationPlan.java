@@ -0,0 +1,462 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Field;
+import org.apache.avro.generic.GenericData;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.apache.avro.Schema.Type.*;
+
+/**
+ * A plan for converting Hive rows described by a particular ObjectInspector
+ * into Avro records of a particular schema.  Working out how each Hive value
+ * maps onto its Avro equivalent only depends on the ObjectInspector and the
+ * schema, so we do it once here, rather than for every value of every row.
+ *
+ * Plans hold per-row state and are not thread-safe.  When reusing records,
+ * the record returned by serialize is only valid until the next call, as it
+ * and everything in it will be cleared and refilled for the next row.
+ */
+class AvroSerializationPlan {
+  private static final Log LOG = LogFactory.getLog(AvroSerializationPlan.class);
+
+  final private ObjectInspector objectInspector;
+  final private Schema schema;
+  final private boolean integratedValidation;
+  final private boolean reuseRecords;
+  final private StructConverter root;
+
+  // Record currently being converted, for reporting failures.
+  private GenericData.Record currentRecord;
+  // Last record built, when reusing records.
+  private GenericData.Record reusableRecord;
+
+  /**
+   * @param integratedValidation check each value against its schema as it is
+   *                             converted, rather than leaving it to a
+   *                             separate pass over the finished record.
+   * @param reuseRecords refill the records, lists, maps and buffers built for
+   *                     the previous row rather than allocating new ones.
+   */
+  public AvroSerializationPlan(ObjectInspector objectInspector, int columnCount, Schema schema,
+                               boolean integratedValidation, boolean reuseRecords) throws HaivvreoException {
+    this.objectInspector = objectInspector;
+    this.schema = schema;
+    this.integratedValidation = integratedValidation;
+    this.reuseRecords = reuseRecords;
+
+    StructObjectInspector soi = (StructObjectInspector) objectInspector;
+    List<? extends StructField> outputFieldRefs = soi.getAllStructFieldRefs();
+    if(outputFieldRefs.size() != columnCount)
+      throw new HaivvreoException("Number of input columns was different than output columns (in = " + columnCount + " vs out = " + outputFieldRefs.size());
+
+    int size = schema.getFields().size();
+    if(outputFieldRefs.size() != size) // Hive does this check for us, so we should be ok.
+      throw new HaivvreoException("Hive passed in a different number of fields than the schema expected: (Hive wanted " + outputFieldRefs.size() +", Avro expected " + schema.getFields().size());
+
+    this.root = new StructConverter(soi, schema);
+  }
+
+  public ObjectInspector getObjectInspector() {
+    return objectInspector;
+  }
+
+  public Schema getSchema() {
+    return schema;
+  }
+
+  public GenericData.Record serialize(Object row) throws HaivvreoException {
+    if(reuseRecords) {
+      if(reusableRecord == null) reusableRecord = root.newRecord();
+      currentRecord = reusableRecord;
+    } else {
+      currentRecord = root.newRecord();
+    }
+    return root.fill(currentRecord, row);
+  }
+
+  private Converter compile(ObjectInspector oi, Schema schema) throws HaivvreoException {
+    // Hive sees Union[T, null] as just T, so convert to T and let the union
+    // absorb any nulls.  Hive-side unions still map branch to branch.
+    if(schema != null && HaivvreoUtils.isNullableType(schema) && oi.getCategory() != ObjectInspector.Category.UNION)
+      return new NullableConverter(oi, schema);
+
+    switch(oi.getCategory()) {
+      case PRIMITIVE:
+        PrimitiveObjectInspector poi = (PrimitiveObjectInspector) oi;
+        if(schema != null && schema.getType().equals(ENUM))
+          return new EnumConverter(poi, schema);
+        return new PrimitiveConverter(poi, schema);
+      case MAP:
+        return new MapConverter((MapObjectInspector) oi, schema);
+      case LIST:
+        // Haivvreo treats FIXED and BYTES as arrays of tinyints within Hive.
+        if(schema.getType().equals(FIXED))
+          return new FixedConverter((ListObjectInspector) oi, schema);
+        if(schema.getType().equals(BYTES))
+          return new BytesConverter((ListObjectInspector) oi, schema);
+        return new ListConverter((ListObjectInspector) oi, schema);
+      case UNION:
+        return new UnionConverter((UnionObjectInspector) oi, schema);
+      case STRUCT:
+        return new StructConverter((StructObjectInspector) oi, schema);
+      default:
+        throw new HaivvreoException("Ran out of ObjectInspector Categories: " + oi.getCategory());
+    }
+  }
+
+  /**
+   * Converts a single Hive value into its Avro equivalent.  Converters are
+   * offered the value they produced for the previous row, which they may
+   * refill and return instead of allocating a new one, if reuse is enabled.
+   */
+  private abstract class Converter {
+    // Null for values with no schema of their own, such as map keys.
+    final protected Schema schema;
+
+    Converter(Schema schema) {
+      this.schema = schema;
+    }
+
+    final Object convert(Object hiveData, Object previous) throws HaivvreoException {
+      Object val = hiveData == null ? null : convertNonNull(hiveData, reuseRecords ? previous : null);
+
+      if(integratedValidation && schema != null && !accepts(val))
+        throw new AvroSerializer.SerializeToAvroException(AvroSerializationPlan.this.schema, currentRecord, schema, val);
+
+      return val;
+    }
+
+    // reuse is the previous value for this position, or null if there isn't
+    // one or it shouldn't be reused.  It may not be of the expected type.
+    abstract protected Object convertNonNull(Object hiveData, Object reuse) throws HaivvreoException;
+
+    // Would Avro accept this converted value for our schema?  Values nested
+    // within it have already been checked by their own converters.
+    protected boolean accepts(Object val) {
+      return val != null;
+    }
+  }
+
+  private class PrimitiveConverter extends Converter {
+    final private PrimitiveObjectInspector poi;
+    final private Class<?> expectedClass;
+
+    PrimitiveConverter(PrimitiveObjectInspector poi, Schema schema) {
+      super(schema);
+      this.poi = poi;
+      this.expectedClass = schema == null ? null : avroClassFor(schema.getType());
+    }
+
+    @Override
+    protected Object convertNonNull(Object hiveData, Object reuse) throws HaivvreoException {
+      switch(poi.getPrimitiveCategory()) {
+        case UNKNOWN:
+          throw new HaivvreoException("Received UNKNOWN primitive category.");
+        case VOID:
+          return null;
+        default: // All other primitive types are simple
+          return poi.getPrimitiveJavaObject(hiveData);
+      }
+    }
+
+    @Override
+    protected boolean accepts(Object val) {
+      if(val == null) return schema.getType().equals(NULL);
+      return expectedClass != null && expectedClass.isInstance(val);
+    }
+  }
+
+  // Hive doesn't have enums; they arrive as strings and need to be one of the symbols.
+  private class EnumConverter extends PrimitiveConverter {
+    final private Set<String> symbols;
+
+    EnumConverter(PrimitiveObjectInspector poi, Schema schema) {
+      super(poi, schema);
+      this.symbols = new HashSet<String>(schema.getEnumSymbols());
+    }
+
+    @Override
+    protected boolean accepts(Object val) {
+      return val != null && symbols.contains(val.toString());
+    }
+  }
+
+  private class NullableConverter extends Converter {
+    final private Converter nonNull;
+
+    NullableConverter(ObjectInspector oi, Schema schema) throws HaivvreoException {
+      super(schema);
+      this.nonNull = compile(oi, HaivvreoUtils.getOtherTypeFromNullableType(schema));
+    }
+
+    @Override
+    protected Object convertNonNull(Object hiveData, Object reuse) throws HaivvreoException {
+      return nonNull.convert(hiveData, reuse);
+    }
+
+    @Override
+    protected boolean accepts(Object val) {
+      return true; // Either null, or checked against the non-null type.
+    }
+  }
+
+  private class StructConverter extends Converter {
+    final private StructObjectInspector soi;
+    final private List<? extends StructField> fieldRefs;
+    final private int[] positions;
+    final private Converter[] fieldConverters;
+
+    StructConverter(StructObjectInspector soi, Schema schema) throws HaivvreoException {
+      super(schema);
+      this.soi = soi;
+      this.fieldRefs = soi.getAllStructFieldRefs();
+
+      List<Field> fields = schema.getFields();
+      if(fields.size() != fieldRefs.size())
+        throw new HaivvreoException("Struct has a different number of fields than the schema expected: (Hive wanted " + fieldRefs.size() + ", Avro expected " + fields.size() + ") for " + schema.getName());
+
+      this.positions = new int[fields.size()];
+      this.fieldConverters = new Converter[fields.size()];
+      for(int i = 0; i < fields.size(); i++) {
+        Field field = fields.get(i);
+        positions[i] = field.pos();
+        fieldConverters[i] = compile(fieldRefs.get(i).getFieldObjectInspector(), field.schema());
+      }
+    }
+
+    GenericData.Record newRecord() {
+      return new GenericData.Record(schema);
+    }
+
+    GenericData.Record fill(GenericData.Record record, Object hiveData) throws HaivvreoException {
+      for(int i = 0; i < fieldConverters.length; i++) {
+        Object structFieldData = soi.getStructFieldData(hiveData, fieldRefs.get(i));
+        int pos = positions[i];
+        record.put(pos, fieldConverters[i].convert(structFieldData, record.get(pos)));
+      }
+      return record;
+    }
+
+    @Override
+    protected Object convertNonNull(Object hiveData, Object reuse) throws HaivvreoException {
+      // Records of another schema may turn up here via unions.
+      GenericData.Record record = reuse instanceof GenericData.Record && ((GenericData.Record) reuse).getSchema() == schema
+                                ? (GenericData.Record) reuse
+                                : newRecord();
+      return fill(record, hiveData);
+    }
+  }
+
+  private class UnionConverter extends Converter {
+    final private UnionObjectInspector uoi;
+    final private Converter[] branches;
+
+    UnionConverter(UnionObjectInspector uoi, Schema schema) throws HaivvreoException {
+      super(schema);
+      this.uoi = uoi;
+
+      // Invariant that Avro's tag ordering must match Hive's.
+      List<ObjectInspector> ois = uoi.getObjectInspectors();
+      this.branches = new Converter[ois.size()];
+      for(int i = 0; i < branches.length; i++) {
+        branches[i] = compile(ois.get(i), schema.getTypes().get(i));
+      }
+    }
+
+    @Override
+    protected Object convertNonNull(Object hiveData, Object reuse) throws HaivvreoException {
+      byte tag = uoi.getTag(hiveData);
+      return branches[tag].convert(uoi.getField(hiveData), reuse);
+    }
+
+    @Override
+    protected boolean accepts(Object val) {
+      return true; // Checked against the branch's schema.
+    }
+  }
+
+  private class ListConverter extends Converter {
+    final private ListObjectInspector loi;
+    final private Converter elementConverter;
+
+    ListConverter(ListObjectInspector loi, Schema schema) throws HaivvreoException {
+      super(schema);
+      this.loi = loi;
+      this.elementConverter = compile(loi.getListElementObjectInspector(), schema.getElementType());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected Object convertNonNull(Object hiveData, Object reuse) throws HaivvreoException {
+      int length = loi.getListLength(hiveData);
+      if(!(reuse instanceof ArrayList)) {
+        List<Object> converted = new ArrayList<Object>(length);
+        for(int i = 0; i < length; i++) {
+          converted.add(elementConverter.convert(loi.getListElement(hiveData, i), null));
+        }
+        return converted;
+      }
+
+      // Refill the old list in place, handing each element its predecessor.
+      ArrayList<Object> converted = (ArrayList<Object>) reuse;
+      int previousLength = converted.size();
+      for(int i = 0; i < length; i++) {
+        Object element = loi.getListElement(hiveData, i);
+        if(i < previousLength)
+          converted.set(i, elementConverter.convert(element, converted.get(i)));
+        else
+          converted.add(elementConverter.convert(element, null));
+      }
+      if(previousLength > length)
+        converted.subList(length, previousLength).clear();
+      return converted;
+    }
+  }
+
+  private class BytesConverter extends Converter {
+    final protected ListObjectInspector loi;
+    final protected PrimitiveObjectInspector elementOI;
+
+    BytesConverter(ListObjectInspector loi, Schema schema) {
+      super(schema);
+      this.loi = loi;
+      assert loi.getListElementObjectInspector() instanceof PrimitiveObjectInspector;
+      this.elementOI = (PrimitiveObjectInspector) loi.getListElementObjectInspector();
+    }
+
+    @Override
+    protected Object convertNonNull(Object hiveData, Object reuse) throws HaivvreoException {
+      int length = loi.getListLength(hiveData);
+      ByteBuffer bb = reuse instanceof ByteBuffer && ((ByteBuffer) reuse).hasArray() && ((ByteBuffer) reuse).capacity() >= length
+                    ? (ByteBuffer) reuse
+                    : ByteBuffer.allocate(length);
+
+      extractBytes(hiveData, bb.array(), bb.arrayOffset(), length);
+      bb.clear();
+      bb.limit(length);
+      return bb;
+    }
+
+    // For transforming to BYTES and FIXED, pull out the bytes Avro will want
+    protected void extractBytes(Object hiveData, byte[] bytes, int offset, int length) throws HaivvreoException {
+      if(LOG.isDebugEnabled()) {
+        LOG.debug("Beginning to transform list of bytes with Avro schema " + schema.toString(false));
+      }
+
+      for(int i = 0; i < length; i++) {
+        Object b = elementOI.getPrimitiveJavaObject(loi.getListElement(hiveData, i));
+        if(!(b instanceof Byte))
+          throw new HaivvreoException("Attempting to transform to bytes, element was not byte but " + (b == null ? "null" : b.getClass().getCanonicalName()));
+        bytes[offset + i] = (Byte)b;
+      }
+    }
+  }
+
+  private class FixedConverter extends BytesConverter {
+    FixedConverter(ListObjectInspector loi, Schema schema) {
+      super(loi, schema);
+    }
+
+    @Override
+    protected Object convertNonNull(Object hiveData, Object reuse) throws HaivvreoException {
+      int length = loi.getListLength(hiveData);
+      GenericData.Fixed fixed = reuse instanceof GenericData.Fixed
+                                && ((GenericData.Fixed) reuse).getSchema() == schema
+                                && ((GenericData.Fixed) reuse).bytes().length == length
+                              ? (GenericData.Fixed) reuse
+                              : new GenericData.Fixed(schema, new byte[length]);
+
+      extractBytes(hiveData, fixed.bytes(), 0, length);
+      return fixed;
+    }
+
+    @Override
+    protected boolean accepts(Object val) {
+      return val != null && ((GenericData.Fixed) val).bytes().length == schema.getFixedSize();
+    }
+  }
+
+  private class MapConverter extends Converter {
+    final private MapObjectInspector moi;
+    final private Converter keyConverter;
+    final private Converter valueConverter;
+
+    MapConverter(MapObjectInspector moi, Schema schema) throws HaivvreoException {
+      super(schema);
+      this.moi = moi;
+
+      // Avro only allows maps with string keys
+      if(!mapHasStringKey(moi.getMapKeyObjectInspector()))
+        throw new HaivvreoException("Avro only supports maps with keys as Strings.  Current Map is: " + moi.getTypeName());
+
+      this.keyConverter = compile(moi.getMapKeyObjectInspector(), null);
+      this.valueConverter = compile(moi.getMapValueObjectInspector(), schema.getValueType());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected Object convertNonNull(Object hiveData, Object reuse) throws HaivvreoException {
+      Map<?,?> map = moi.getMap(hiveData);
+      Map<Object, Object> converted;
+      if(reuse instanceof HashMap) {
+        converted = (HashMap<Object, Object>) reuse;
+        converted.clear();
+      } else {
+        converted = new HashMap<Object, Object>(map.size() * 4 / 3 + 1);
+      }
+
+      // Keys change from row to row, so values aren't reused.
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        converted.put(keyConverter.convert(entry.getKey(), null), valueConverter.convert(entry.getValue(), null));
+      }
+      return converted;
+    }
+  }
+
+  private static boolean mapHasStringKey(ObjectInspector mapKeyObjectInspector) {
+    return mapKeyObjectInspector instanceof PrimitiveObjectInspector &&
+        ((PrimitiveObjectInspector) mapKeyObjectInspector)
+            .getPrimitiveCategory()
+            .equals(PrimitiveObjectInspector.PrimitiveCategory.STRING);
+  }
+
+  // The Java class Avro expects to find for values of a given type.
+  private static Class<?> avroClassFor(Schema.Type type) {
+    switch(type) {
+      case STRING:  return CharSequence.class;
+      case BYTES:   return ByteBuffer.class;
+      case INT:     return Integer.class;
+      case LONG:    return Long.class;
+      case FLOAT:   return Float.class;
+      case DOUBLE:  return Double.class;
+      case BOOLEAN: return Boolean.class;
+      default:      return null;
+    }
+  }
+}
@@ -16,57 +16,108 @@
 package com.linkedin.haivvreo;
 
 import org.apache.avro.Schema;
-import org.apache.avro.Schema.Field;
 import org.apache.avro.generic.GenericData;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.hadoop.hive.serde2.objectinspector.*;
-import org.apache.hadoop.hive.serde2.typeinfo.*;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.io.Writable;
-import static org.apache.avro.Schema.Type.*;
 
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 class AvroSerializer {
   private static final Log LOG = LogFactory.getLog(AvroSerializer.class);
 
+  /**
+   * How each converted row is checked against the Avro schema before being
+   * handed off to the writer.
+   *   FULL       - Run Avro's own recursive validation over every record.
+   *   SAMPLED    - Run Avro's validation over every Nth record only.
+   *   INTEGRATED - Check nullability, enum symbols, fixed sizes and primitive
+   *                types while converting, avoiding a second walk of the record.
+   */
+  enum ValidationMode {
+    FULL, SAMPLED, INTEGRATED;
+
+    static ValidationMode fromString(String mode) throws HaivvreoException {
+      try {
+        return valueOf(mode.trim().toUpperCase());
+      } catch(IllegalArgumentException iae) {
+        throw new HaivvreoException("Unknown validation mode: " + mode);
+      }
+    }
+  }
+
+  static final int DEFAULT_SAMPLE_INTERVAL = 1000;
+
   AvroGenericRecordWritable cache = new AvroGenericRecordWritable();
 
+  final private ValidationMode validationMode;
+  final private int sampleInterval;
+  final private boolean reuseRecords;
+  final private boolean passThrough;
+  private long rowsSerialized = 0;
+
+  // Whether rows deserialized with passThroughFrom can be passed through to
+  // passThroughTo, so the schemas needn't be compared for every row.
+  private Schema passThroughFrom = null;
+  private Schema passThroughTo = null;
+  private boolean schemasMatch = false;
+
+  // Plans for each (ObjectInspector, schema) we've been asked to serialize.
+  // Hive almost always hands us the same pair, so check the last one first.
+  final private Map<PlanKey, AvroSerializationPlan> plans = new HashMap<PlanKey, AvroSerializationPlan>();
+  private AvroSerializationPlan lastPlan = null;
+
+  public AvroSerializer() {
+    this(ValidationMode.FULL, DEFAULT_SAMPLE_INTERVAL, false);
+  }
+
+  /**
+   * @param reuseRecords Refill the same record (and any lists, maps, buffers
+   *                     and nested records within it) for each row.  The
+   *                     record returned is then only valid until the next
+   *                     call to serialize.
+   */
+  public AvroSerializer(ValidationMode validationMode, int sampleInterval, boolean reuseRecords) {
+    this(validationMode, sampleInterval, reuseRecords, false);
+  }
+
+  /**
+   * @param passThrough If a row is exactly as an AvroDeserializer on this
+   *                    thread last produced it, for the same schema, hand on
+   *                    the record it came from instead of converting the row.
+   */
+  public AvroSerializer(ValidationMode validationMode, int sampleInterval, boolean reuseRecords, boolean passThrough) {
+    if(sampleInterval < 1)
+      throw new IllegalArgumentException("Sample interval must be positive: " + sampleInterval);
+    this.validationMode = validationMode;
+    this.sampleInterval = sampleInterval;
+    this.reuseRecords = reuseRecords;
+    this.passThrough = passThrough;
+  }
+
   // Hive is pretty simple (read: stupid) in writing out values via the serializer.
   // We're just going to go through, matching indices.  Hive formats normally
   // handle mismatches with null.  We don't have that option, so instead we'll
   // end up throwing an exception for invalid records.
+  // The column types are implied by the ObjectInspector, which drives the conversion.
   public Writable serialize(Object o, ObjectInspector objectInspector, List<String> columnNames, List<TypeInfo> columnTypes, Schema schema) throws HaivvreoException {
-    StructObjectInspector soi = (StructObjectInspector) objectInspector;
-    GenericData.Record record = new GenericData.Record(schema);
-
-    List<? extends StructField> outputFieldRefs = soi.getAllStructFieldRefs();
-    if(outputFieldRefs.size() != columnNames.size())
-      throw new HaivvreoException("Number of input columns was different than output columns (in = " + columnNames.size() + " vs out = " + outputFieldRefs.size());
-
-    int size = schema.getFields().size();
-    if(outputFieldRefs.size() != size) // Hive does this check for us, so we should be ok.
-      throw new HaivvreoException("Hive passed in a different number of fields than the schema expected: (Hive wanted " + outputFieldRefs.size() +", Avro expected " + schema.getFields().size());
-
-    List<? extends StructField> allStructFieldRefs = soi.getAllStructFieldRefs();
-    List<Object> structFieldsDataAsList = soi.getStructFieldsDataAsList(o);
-
-    for(int i  = 0; i < size; i++) {
-      Field field = schema.getFields().get(i);
-      TypeInfo typeInfo = columnTypes.get(i);
-      StructField structFieldRef = allStructFieldRefs.get(i);
-      Object structFieldData = structFieldsDataAsList.get(i);
-      ObjectInspector fieldOI = structFieldRef.getFieldObjectInspector();
-
-      Object val = serialize(typeInfo, fieldOI, structFieldData, field.schema());
-      record.put(field.name(), val);
+    if(passThrough) {
+      AvroDeserializer.LastRow last = AvroDeserializer.lastRow.get();
+      if(last.row == o && o != null && matches(last.schema, schema)) {
+        // Already a valid record of this schema; no need to check it again.
+        cache.passThrough(last.source, last.record);
+        return cache;
+      }
     }
 
-    if(!GenericData.get().validate(schema, record))
+    AvroSerializationPlan plan = getPlan(objectInspector, columnNames.size(), schema);
+    GenericData.Record record = plan.serialize(o);
+
+    if(shouldRunFullValidation() && !GenericData.get().validate(schema, record))
       throw new SerializeToAvroException(schema, record);
 
     cache.setRecord(record);
@@ -74,161 +125,67 @@ class AvroSerializer {
     return cache;
   }
 
-  private Object serialize(TypeInfo typeInfo, ObjectInspector fieldOI, Object structFieldData, Schema schema) throws HaivvreoException {
-    switch(typeInfo.getCategory()) {
-      case PRIMITIVE:
-        assert fieldOI instanceof PrimitiveObjectInspector;
-        return serializePrimitive(typeInfo, (PrimitiveObjectInspector) fieldOI, structFieldData);
-      case MAP:
-        assert fieldOI instanceof MapObjectInspector;
-        assert typeInfo instanceof MapTypeInfo;
-        return serializeMap((MapTypeInfo) typeInfo, (MapObjectInspector) fieldOI, structFieldData, schema);
-      case LIST:
-        assert fieldOI instanceof ListObjectInspector;
-        assert typeInfo instanceof ListTypeInfo;
-        return serializeList((ListTypeInfo) typeInfo, (ListObjectInspector) fieldOI, structFieldData, schema);
-      case UNION:
-        assert fieldOI instanceof UnionObjectInspector;
-        assert typeInfo instanceof UnionTypeInfo;
-        return serializeUnion((UnionTypeInfo) typeInfo, (UnionObjectInspector) fieldOI, structFieldData, schema);
-      case STRUCT:
-        assert fieldOI instanceof StructObjectInspector;
-        assert typeInfo instanceof StructTypeInfo;
-        return serializeStruct((StructTypeInfo) typeInfo, (StructObjectInspector) fieldOI, structFieldData, schema);
-      default:
-        throw new HaivvreoException("Ran out of TypeInfo Categories: " + typeInfo.getCategory());
+  private boolean matches(Schema from, Schema to) {
+    if(from != passThroughFrom || to != passThroughTo) {
+      schemasMatch = from.equals(to);
+      passThroughFrom = from;
+      passThroughTo = to;
     }
+    return schemasMatch;
   }
 
-  private Object serializeStruct(StructTypeInfo typeInfo, StructObjectInspector ssoi, Object o, Schema schema) throws HaivvreoException {
-    int size = schema.getFields().size();
-    List<? extends StructField> allStructFieldRefs = ssoi.getAllStructFieldRefs();
-    List<Object> structFieldsDataAsList = ssoi.getStructFieldsDataAsList(o);
-    GenericData.Record record = new GenericData.Record(schema);
-    ArrayList<TypeInfo> allStructFieldTypeInfos = typeInfo.getAllStructFieldTypeInfos();
-
-    for(int i  = 0; i < size; i++) {
-      Field field = schema.getFields().get(i);
-      TypeInfo colTypeInfo = allStructFieldTypeInfos.get(i);
-      StructField structFieldRef = allStructFieldRefs.get(i);
-      Object structFieldData = structFieldsDataAsList.get(i);
-      ObjectInspector fieldOI = structFieldRef.getFieldObjectInspector();
-
-      Object val = serialize(colTypeInfo, fieldOI, structFieldData, field.schema());
-      record.put(field.name(), val);
-    }
-    return record;
-  }
+  private AvroSerializationPlan getPlan(ObjectInspector objectInspector, int columnCount, Schema schema) throws HaivvreoException {
+    if(lastPlan != null && lastPlan.getObjectInspector() == objectInspector && lastPlan.getSchema() == schema)
+      return lastPlan;
 
-  private Object serializePrimitive(TypeInfo typeInfo, PrimitiveObjectInspector fieldOI, Object structFieldData) throws HaivvreoException {
-    switch(fieldOI.getPrimitiveCategory()) {
-      case UNKNOWN:
-        throw new HaivvreoException("Received UNKNOWN primitive category.");
-      case VOID:
-        return null;
-      default: // All other primitive types are simple
-        return fieldOI.getPrimitiveJavaObject(structFieldData);
+    PlanKey key = new PlanKey(objectInspector, schema);
+    AvroSerializationPlan plan = plans.get(key);
+    if(plan == null) {
+      if(LOG.isDebugEnabled()) LOG.debug("Compiling serialization plan for " + objectInspector.getTypeName() + " to " + schema.toString(false));
+      plan = new AvroSerializationPlan(objectInspector, columnCount, schema, validationMode == ValidationMode.INTEGRATED, reuseRecords);
+      plans.put(key, plan);
     }
+    lastPlan = plan;
+    return plan;
   }
 
-  private Object serializeUnion(UnionTypeInfo typeInfo, UnionObjectInspector fieldOI, Object structFieldData, Schema schema) throws HaivvreoException {
-    byte tag = fieldOI.getTag(structFieldData);
-
-    // Invariant that Avro's tag ordering must match Hive's.
-    return serialize(typeInfo.getAllUnionObjectTypeInfos().get(tag),
-                     fieldOI.getObjectInspectors().get(tag),
-                     fieldOI.getField(structFieldData),
-                     schema.getTypes().get(tag));
-  }
-
-  // Haivvreo treats FIXED and BYTES as arrays of tinyints within Hive.  Check
-  // if we're dealing with either of these types and thus need to serialize
-  // them as their Avro types.
-  private boolean isTransformedType(Schema schema) {
-    return schema.getType().equals(FIXED) || schema.getType().equals(BYTES);
-  }
-
-  private Object serializeTransformedType(ListTypeInfo typeInfo, ListObjectInspector fieldOI, Object structFieldData, Schema schema) throws HaivvreoException {
-    if(LOG.isDebugEnabled()) {
-      LOG.debug("Beginning to transform " + typeInfo + " with Avro schema " + schema.toString(false));
+  private boolean shouldRunFullValidation() {
+    switch(validationMode) {
+      case FULL:
+        return true;
+      case SAMPLED:
+        return rowsSerialized++ % sampleInterval == 0;
+      default:
+        return false;
     }
-    if(schema.getType().equals(FIXED)) return serializedAvroFixed(typeInfo, fieldOI, structFieldData, schema);
-    else return serializeAvroBytes(typeInfo, fieldOI, structFieldData, schema);
-
-  }
-
-  private Object serializeAvroBytes(ListTypeInfo typeInfo, ListObjectInspector fieldOI, Object structFieldData, Schema schema) throws HaivvreoException {
-    ByteBuffer bb = ByteBuffer.wrap(extraByteArray(fieldOI, structFieldData));
-    return bb.rewind();
   }
 
-  private Object serializedAvroFixed(ListTypeInfo typeInfo, ListObjectInspector fieldOI, Object structFieldData, Schema schema) throws HaivvreoException {
-    return new GenericData.Fixed(schema, extraByteArray(fieldOI, structFieldData));
-  }
+  /**
+   * ObjectInspectors are matched by identity, since that's how Hive shares
+   * them, and schemas by value.
+   */
+  private static class PlanKey {
+    final private ObjectInspector objectInspector;
+    final private Schema schema;
 
-  // For transforming to BYTES and FIXED, pull out the byte array Avro will want
-  private byte[] extraByteArray(ListObjectInspector fieldOI, Object structFieldData) throws HaivvreoException {
-    // Grab a book.  This is going to be slow.
-    int listLength = fieldOI.getListLength(structFieldData);
-    byte[] bytes = new byte[listLength];
-    assert fieldOI.getListElementObjectInspector() instanceof PrimitiveObjectInspector;
-    PrimitiveObjectInspector poi = (PrimitiveObjectInspector)fieldOI.getListElementObjectInspector();
-    List<?> list = fieldOI.getList(structFieldData);
-
-    for(int i = 0; i < listLength; i++) {
-      Object b = poi.getPrimitiveJavaObject(list.get(i));
-      if(!(b instanceof Byte))
-        throw new HaivvreoException("Attempting to transform to bytes, element was not byte but " + b.getClass().getCanonicalName());
-      bytes[i] = (Byte)b;
+    PlanKey(ObjectInspector objectInspector, Schema schema) {
+      this.objectInspector = objectInspector;
+      this.schema = schema;
     }
-    return bytes;
-  }
 
-  private Object serializeList(ListTypeInfo typeInfo, ListObjectInspector fieldOI, Object structFieldData, Schema schema) throws HaivvreoException {
-    if(isTransformedType(schema))
-      return serializeTransformedType(typeInfo, fieldOI, structFieldData, schema);
-    
-    List<?> list = fieldOI.getList(structFieldData);
-    List<Object> deserialized = new ArrayList<Object>(list.size());
-
-    TypeInfo listElementTypeInfo = typeInfo.getListElementTypeInfo();
-    ObjectInspector listElementObjectInspector = fieldOI.getListElementObjectInspector();
-    Schema elementType = schema.getElementType();
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
 
-    for(int i = 0; i < list.size(); i++) {
-      deserialized.add(i, serialize(listElementTypeInfo, listElementObjectInspector, list.get(i), elementType));
+      PlanKey that = (PlanKey) o;
+      return objectInspector == that.objectInspector && schema.equals(that.schema);
     }
 
-    return deserialized;
-  }
-
-  private Object serializeMap(MapTypeInfo typeInfo, MapObjectInspector fieldOI, Object structFieldData, Schema schema) throws HaivvreoException {
-    // Avro only allows maps with string keys
-    if(!mapHasStringKey(fieldOI.getMapKeyObjectInspector()))
-      throw new HaivvreoException("Avro only supports maps with keys as Strings.  Current Map is: " + typeInfo.toString());
-
-    ObjectInspector mapKeyObjectInspector = fieldOI.getMapKeyObjectInspector();
-    ObjectInspector mapValueObjectInspector = fieldOI.getMapValueObjectInspector();
-    TypeInfo mapKeyTypeInfo = typeInfo.getMapKeyTypeInfo();
-    TypeInfo mapValueTypeInfo = typeInfo.getMapValueTypeInfo();
-    Map<?,?> map = fieldOI.getMap(structFieldData);
-    Schema valueType = schema.getValueType();
-
-    Map<Object, Object> deserialized = new Hashtable<Object, Object>(fieldOI.getMapSize(structFieldData));
-
-    for (Map.Entry<?, ?> entry : map.entrySet()) {
-      deserialized.put(serialize(mapKeyTypeInfo, mapKeyObjectInspector, entry.getKey(), null), // This works, but is a bit fragile.  Construct a single String schema?
-                       serialize(mapValueTypeInfo, mapValueObjectInspector, entry.getValue(), valueType));
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(objectInspector) + schema.hashCode();
     }
-
-    return deserialized;
-  }
-
-  private boolean mapHasStringKey(ObjectInspector mapKeyObjectInspector) {
-    return mapKeyObjectInspector instanceof PrimitiveObjectInspector &&
-        ((PrimitiveObjectInspector) mapKeyObjectInspector)
-            .getPrimitiveCategory()
-            .equals(PrimitiveObjectInspector.PrimitiveCategory.STRING);
   }
 
   /**
@@ -238,16 +195,31 @@ class AvroSerializer {
   public static class SerializeToAvroException extends HaivvreoException {
     final private Schema schema;
     final private GenericData.Record record;
+    final private Schema invalidSchema;
+    final private Object invalidValue;
 
     public SerializeToAvroException(Schema schema, GenericData.Record record) {
+      this(schema, record, null, null);
+    }
+
+    /**
+     * During integrated validation the record is only partially converted
+     * when the problem is found, so also report the offending value.
+     */
+    public SerializeToAvroException(Schema schema, GenericData.Record record, Schema invalidSchema, Object invalidValue) {
       this.schema = schema;
       this.record = record;
+      this.invalidSchema = invalidSchema;
+      this.invalidValue = invalidValue;
     }
 
     @Override
     public String toString() {
-      return "Avro could not validate record against schema (record = " + record
+      String s = "Avro could not validate record against schema (record = " + record
           + ") (schema = "+schema.toString(false) + ")";
+      if(invalidSchema != null)
+        s += " (value = " + invalidValue + " does not match " + invalidSchema.toString(false) + ")";
+      return s;
     }
   }
 }
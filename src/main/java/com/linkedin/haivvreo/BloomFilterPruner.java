@@ -0,0 +1,187 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.ql.exec.Utilities;
+import org.apache.hadoop.hive.ql.plan.ExprNodeColumnDesc;
+import org.apache.hadoop.hive.ql.plan.ExprNodeConstantDesc;
+import org.apache.hadoop.hive.ql.plan.ExprNodeDesc;
+import org.apache.hadoop.hive.ql.plan.ExprNodeGenericFuncDesc;
+import org.apache.hadoop.hive.ql.plan.TableScanDesc;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFIn;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFOPAnd;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFOPEqual;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFOPOr;
+import org.apache.hadoop.mapred.JobConf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Drops the files that a query's filter certainly matches no rows of,
+ * going by the Bloom filters written beside them.  Only equality with and
+ * IN lists of constants, and ANDs and ORs of those, are looked at; any other
+ * part of the filter is taken as possibly matching.
+ */
+class BloomFilterPruner {
+  private static final Log LOG = LogFactory.getLog(BloomFilterPruner.class);
+
+  private BloomFilterPruner() {}
+
+  /**
+   * @return the files that may have rows matching the filter Hive has pushed
+   * down into the job, which is all of them if there's no filter
+   */
+  public static FileStatus[] prune(JobConf job, FileStatus[] files) throws IOException {
+    String serialized = job.get(TableScanDesc.FILTER_EXPR_CONF_STR);
+    if(serialized == null || files.length == 0) return files;
+
+    ExprNodeDesc filter;
+    try {
+      filter = Utilities.deserializeExpression(serialized, job);
+    } catch (RuntimeException e) {
+      LOG.warn("Unable to read the query's filter; not pruning files.", e);
+      return files;
+    }
+    if(!hasLookups(filter)) return files;
+
+    // Listing each directory once finds the sidecars without asking for each.
+    Map<Path, Set<String>> sidecars = new HashMap<Path, Set<String>>();
+    List<FileStatus> kept = new ArrayList<FileStatus>();
+    for(FileStatus file : files) {
+      Path path = file.getPath();
+      FileSystem fs = path.getFileSystem(job);
+      Set<String> names = sidecars.get(path.getParent());
+      if(names == null) {
+        names = new HashSet<String>();
+        FileStatus[] siblings = fs.listStatus(path.getParent());
+        if(siblings != null)
+          for(FileStatus sibling : siblings)
+            names.add(sibling.getPath().getName());
+        sidecars.put(path.getParent(), names);
+      }
+
+      Path sidecar = ColumnBloomFilter.sidecarPath(path);
+      if(!names.contains(sidecar.getName())) {
+        kept.add(file);
+        continue;
+      }
+      try {
+        if(mightMatch(filter, ColumnBloomFilter.read(fs, sidecar)))
+          kept.add(file);
+        else if(LOG.isDebugEnabled())
+          LOG.debug("Skipping " + path + ", which has no rows matching " + filter.getExprString());
+      } catch (IOException e) {
+        LOG.warn("Unable to read Bloom filters of " + path + "; not pruning it.", e);
+        kept.add(file);
+      }
+    }
+
+    if(kept.size() < files.length)
+      LOG.info("Bloom filters ruled out " + (files.length - kept.size()) + " of " + files.length + " files.");
+    return kept.toArray(new FileStatus[kept.size()]);
+  }
+
+  // Whether there's anything in the filter that could rule a file out
+  private static boolean hasLookups(ExprNodeDesc expr) {
+    if(!(expr instanceof ExprNodeGenericFuncDesc)) return false;
+    GenericUDF udf = ((ExprNodeGenericFuncDesc) expr).getGenericUDF();
+    if(udf instanceof GenericUDFOPEqual || udf instanceof GenericUDFIn) return true;
+    if(udf instanceof GenericUDFOPAnd || udf instanceof GenericUDFOPOr)
+      for(ExprNodeDesc child : expr.getChildren())
+        if(hasLookups(child)) return true;
+    return false;
+  }
+
+  /**
+   * @return false if no row with values in these filters can match expr
+   */
+  static boolean mightMatch(ExprNodeDesc expr, Map<String, ColumnBloomFilter> filters) {
+    if(!(expr instanceof ExprNodeGenericFuncDesc)) return true;
+    GenericUDF udf = ((ExprNodeGenericFuncDesc) expr).getGenericUDF();
+    List<ExprNodeDesc> children = expr.getChildren();
+
+    if(udf instanceof GenericUDFOPAnd) {
+      for(ExprNodeDesc child : children)
+        if(!mightMatch(child, filters)) return false;
+      return true;
+    }
+    if(udf instanceof GenericUDFOPOr) {
+      for(ExprNodeDesc child : children)
+        if(mightMatch(child, filters)) return true;
+      return false;
+    }
+
+    // column = constant, either way round, or column IN (constants...)
+    ExprNodeColumnDesc column;
+    List<ExprNodeDesc> values;
+    if(udf instanceof GenericUDFOPEqual && children.size() == 2) {
+      boolean columnFirst = children.get(0) instanceof ExprNodeColumnDesc;
+      if(!(children.get(columnFirst ? 0 : 1) instanceof ExprNodeColumnDesc)) return true;
+      column = (ExprNodeColumnDesc) children.get(columnFirst ? 0 : 1);
+      values = children.subList(columnFirst ? 1 : 0, columnFirst ? 2 : 1);
+    } else if(udf instanceof GenericUDFIn && children.size() > 1 && children.get(0) instanceof ExprNodeColumnDesc) {
+      column = (ExprNodeColumnDesc) children.get(0);
+      values = children.subList(1, children.size());
+    } else {
+      return true;
+    }
+
+    ColumnBloomFilter filter = filters.get(column.getColumn().toLowerCase());
+    if(filter == null) return true;
+    for(ExprNodeDesc value : values) {
+      if(!(value instanceof ExprNodeConstantDesc)) return true;
+      Object c = constant(filter.getKind(), ((ExprNodeConstantDesc) value).getValue());
+      if(c == null || filter.mightContain(c)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return the constant as a value of the column would be kept, or null if
+   * it's of some other type, which Hive would have converted the column to
+   * compare with
+   */
+  private static Object constant(ColumnStats.Kind kind, Object value) {
+    switch(kind) {
+      case LONG:
+        if(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+          return ((Number) value).longValue();
+        return null;
+      case DOUBLE:
+        if(value instanceof Double || value instanceof Float)
+          return ((Number) value).doubleValue();
+        return null;
+      case STRING:
+        return value instanceof String ? value.toString() : null;
+      case BOOLEAN:
+        return value instanceof Boolean ? (Boolean) value : null;
+      default:
+        return null;
+    }
+  }
+}
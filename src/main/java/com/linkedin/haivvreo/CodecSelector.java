@@ -0,0 +1,168 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.avro.file.CodecFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picks a codec for a file by compressing a sample of its first blocks with
+ * each candidate and weighing how small each made them against how long it
+ * took.  Sizes and times are each taken relative to the best candidate's, so
+ * the weight is unitless: 0 wants the smallest output, 1 the fastest codec.
+ */
+class CodecSelector {
+  private static final Log LOG = LogFactory.getLog(CodecSelector.class);
+
+  public static final String SMALLEST = "size";
+  public static final String FASTEST = "speed";
+  public static final String BALANCED = "balanced";
+
+  // Each candidate's time is the best of this many passes over the samples
+  private static final int TIMED_RUNS = 3;
+
+  private final List<CodecFactory> candidates;
+  private final double speedWeight;
+
+  public CodecSelector(List<CodecFactory> candidates, double speedWeight) {
+    if(candidates.isEmpty())
+      throw new IllegalArgumentException("No candidate codecs to choose between");
+    if(speedWeight < 0 || speedWeight > 1)
+      throw new IllegalArgumentException("Speed weight must be between 0 and 1: " + speedWeight);
+    this.candidates = candidates;
+    this.speedWeight = speedWeight;
+  }
+
+  /**
+   * Deflate at each level, snappy and bzip2, leaving out any this version
+   * of Avro doesn't know.
+   */
+  public static List<CodecFactory> defaultCandidates() {
+    List<CodecFactory> candidates = new ArrayList<CodecFactory>();
+    for(int level = 1; level <= 9; level++)
+      candidates.add(CodecFactory.deflateCodec(level));
+    for(String name : new String[] {"snappy", "bzip2"}) {
+      try {
+        candidates.add(CodecFactory.fromString(name));
+      } catch (RuntimeException e) {
+        LOG.debug("Codec " + name + " is unavailable; not considering it", e);
+      }
+    }
+    return candidates;
+  }
+
+  /**
+   * @param objective size, speed, balanced or a speed weight between 0 and 1
+   * @throws IllegalArgumentException if it's none of those
+   */
+  public static double parseObjective(String objective) {
+    String o = objective.trim().toLowerCase();
+    if(o.equals(SMALLEST)) return 0;
+    if(o.equals(FASTEST)) return 1;
+    if(o.equals(BALANCED)) return 0.5;
+    double weight;
+    try {
+      weight = Double.parseDouble(o);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Unknown codec objective: " + objective);
+    }
+    if(weight < 0 || weight > 1)
+      throw new IllegalArgumentException("Codec objective must be between 0 and 1: " + objective);
+    return weight;
+  }
+
+  /**
+   * @param samples uncompressed blocks to try the candidates on
+   * @return the candidate best meeting the objective
+   */
+  public CodecFactory choose(List<ByteBuffer> samples) {
+    if(samples.isEmpty()) return candidates.get(0);
+
+    int n = candidates.size();
+    AvroContainerWriter.BlockCodec[] codecs = new AvroContainerWriter.BlockCodec[n];
+    long[] sizes = new long[n];
+    long[] times = new long[n];
+
+    // A first, untimed, pass with each candidate, for its size and so that
+    // none is timed while its code or buffers are still cold.
+    for(int i = 0; i < n; i++) {
+      try {
+        codecs[i] = new AvroContainerWriter.BlockCodec(candidates.get(i));
+        sizes[i] = compress(codecs[i], samples);
+      } catch (Throwable t) {
+        // Missing native libraries and the like: just not a candidate.
+        LOG.warn("Unable to try codec " + candidates.get(i) + "; not considering it", t);
+        codecs[i] = null;
+      }
+      times[i] = Long.MAX_VALUE;
+    }
+
+    // Then the best of a few timed passes, taking turns, so that none gains
+    // by where it comes in the order.
+    for(int run = 0; run < TIMED_RUNS; run++) {
+      for(int i = 0; i < n; i++) {
+        if(codecs[i] == null) continue;
+        long start = System.nanoTime();
+        try {
+          compress(codecs[i], samples);
+        } catch (Throwable t) {
+          LOG.warn("Unable to try codec " + candidates.get(i) + "; not considering it", t);
+          codecs[i] = null;
+          continue;
+        }
+        times[i] = Math.min(times[i], Math.max(1, System.nanoTime() - start));
+      }
+    }
+
+    long minSize = Long.MAX_VALUE;
+    long minTime = Long.MAX_VALUE;
+    for(int i = 0; i < n; i++) {
+      if(codecs[i] == null) continue;
+      minSize = Math.min(minSize, sizes[i]);
+      minTime = Math.min(minTime, times[i]);
+    }
+
+    int best = -1;
+    double bestCost = Double.MAX_VALUE;
+    for(int i = 0; i < n; i++) {
+      if(codecs[i] == null) continue;
+      double cost = (1 - speedWeight) * sizes[i] / Math.max(1, minSize) + speedWeight * (double) times[i] / minTime;
+      if(LOG.isDebugEnabled())
+        LOG.debug("Codec " + candidates.get(i) + ": " + sizes[i] + " bytes in " + times[i] + "ns, cost " + cost);
+      if(cost < bestCost) {
+        bestCost = cost;
+        best = i;
+      }
+    }
+    if(best < 0)
+      throw new IllegalStateException("None of the candidate codecs could be used");
+    return candidates.get(best);
+  }
+
+  // Total compressed size of the samples
+  private static long compress(AvroContainerWriter.BlockCodec codec, List<ByteBuffer> samples) throws IOException {
+    long size = 0;
+    for(ByteBuffer sample : samples)
+      size += codec.compress(sample.duplicate()).remaining();
+    return size;
+  }
+}
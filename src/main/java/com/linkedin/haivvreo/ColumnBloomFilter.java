@@ -0,0 +1,278 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bloom filter of the values of one column of a file, telling for certain
+ * when a value isn't in the file.
+ *
+ * How many values a file will hold isn't known while it's written, so the
+ * filter is sized for the most expected, and once the file is done is folded
+ * in half (each bit ORed with its partner in the other half) for as long as
+ * it stays within the false positive rate wanted.  The bit a hash sets is its
+ * low bits, so a folded filter still finds everything the whole one did.
+ *
+ * So that files of few values don't each hold a filter of the full size while
+ * they're written, the distinct hashes added are kept instead, until keeping
+ * them would take half the room of the filter.  Only then is the filter
+ * made, from them.  If the file is done first, the filter is made straight
+ * away at the size it would have folded to.
+ */
+class ColumnBloomFilter {
+  public static final String SIDECAR_SUFFIX = ".bloom";
+
+  public static final double DEFAULT_FPP = 0.01;
+  public static final long DEFAULT_MAX_ENTRIES = 1000000;
+  private static final int MIN_BITS = 1024;
+
+  // Each file's filters are written beside it as records of this schema.
+  static final Schema SIDECAR_SCHEMA = SchemaInterner.parse("{\"type\":\"record\",\"name\":\"ColumnBloomFilter\","
+      + "\"namespace\":\"com.linkedin.haivvreo\",\"fields\":["
+      + "{\"name\":\"column\",\"type\":\"string\"},"
+      + "{\"name\":\"kind\",\"type\":\"string\"},"
+      + "{\"name\":\"hashes\",\"type\":\"int\"},"
+      + "{\"name\":\"bits\",\"type\":\"bytes\"}]}");
+
+  private final String name; // Lower case, as Hive has column names
+  private final ColumnStats.Kind kind;
+  private final int hashes;
+  private final double fpp;
+  private final long maxBits; // What the filter is sized for
+  private long[] bits; // Null while the hashes added are kept instead
+  // The distinct hashes added, by open addressing, with zero for none
+  private long[] kept = null;
+  private boolean keptZero = false;
+  private int keptCount = 0;
+
+  /**
+   * @param maxEntries how many distinct values to size the filter for
+   * @param fpp the rate of false positives wanted
+   */
+  public ColumnBloomFilter(String name, ColumnStats.Kind kind, long maxEntries, double fpp) {
+    if(kind != ColumnStats.Kind.LONG && kind != ColumnStats.Kind.DOUBLE && kind != ColumnStats.Kind.STRING
+        && kind != ColumnStats.Kind.BOOLEAN)
+      throw new IllegalArgumentException("Can't filter on column " + name + ", of " + kind + " values");
+    if(fpp <= 0 || fpp >= 1)
+      throw new IllegalArgumentException("Invalid false positive rate for a Bloom filter: " + fpp);
+    this.name = name.toLowerCase();
+    this.kind = kind;
+    this.fpp = fpp;
+    this.hashes = Math.max(1, (int) Math.round(-Math.log(fpp) / Math.log(2)));
+    this.maxBits = numBits(maxEntries, fpp);
+    this.bits = null;
+    this.kept = new long[(int) Math.min(64, maxBits / 128)];
+  }
+
+  private ColumnBloomFilter(String name, ColumnStats.Kind kind, int hashes, long[] bits) {
+    this.name = name;
+    this.kind = kind;
+    this.hashes = hashes;
+    this.fpp = 0;
+    this.maxBits = bits.length * 64L;
+    this.bits = bits;
+  }
+
+  /**
+   * @return the bits wanted for this many entries, as a power of two from
+   * MIN_BITS up to 256MB
+   */
+  private static long numBits(double entries, double fpp) {
+    double wanted = Math.max(MIN_BITS, -entries * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+    return Long.highestOneBit((long) Math.min(wanted, 1L << 31) - 1) << 1;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public ColumnStats.Kind getKind() {
+    return kind;
+  }
+
+  long getNumBits() {
+    return bits == null ? maxBits : bits.length * 64L;
+  }
+
+  /**
+   * Add a value of the column, as read from or written to Avro.  Nulls are
+   * never looked up, so aren't added.
+   */
+  public void add(Object value) {
+    if(value == null) return;
+    long hash = ColumnStats.hash(ColumnStats.normalize(kind, value));
+    if(bits != null)
+      set(hash);
+    else
+      keep(hash);
+  }
+
+  private void set(long hash) {
+    long mask = getNumBits() - 1;
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for(int i = 0; i < hashes; i++) {
+      long bit = (h1 + i * h2) & mask;
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  private void keep(long hash) {
+    if(hash == 0) {
+      if(!keptZero) keptCount++;
+      keptZero = true;
+      return;
+    }
+    int slot = slot(hash);
+    if(kept[slot] == hash) return;
+    kept[slot] = hash;
+    if(++keptCount * 2 <= kept.length) return;
+
+    long[] old = kept;
+    if(old.length * 2 * 128L > maxBits) { // Kept, the hashes would take half the room of the filter.
+      fill(maxBits);
+      return;
+    }
+    kept = new long[old.length * 2];
+    for(long h : old)
+      if(h != 0) kept[slot(h)] = h;
+  }
+
+  // Where the hash is kept, or the empty slot it would go in
+  private int slot(long hash) {
+    int mask = kept.length - 1;
+    int slot = (int) (hash ^ (hash >>> 32)) & mask;
+    while(kept[slot] != 0 && kept[slot] != hash)
+      slot = (slot + 1) & mask;
+    return slot;
+  }
+
+  // Make the filter, of this many bits, from the hashes kept.
+  private void fill(long numBits) {
+    bits = new long[(int) (numBits / 64)];
+    for(long h : kept)
+      if(h != 0) set(h);
+    if(keptZero) set(0);
+    kept = null;
+  }
+
+  /**
+   * @return false if the value, normalized as by {@link ColumnStats}, was
+   * certainly never added
+   */
+  public boolean mightContain(Object value) {
+    long hash = ColumnStats.hash(value);
+    if(bits == null)
+      return hash == 0 ? keptZero : kept[slot(hash)] == hash;
+    long mask = getNumBits() - 1;
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for(int i = 0; i < hashes; i++) {
+      long bit = (h1 + i * h2) & mask;
+      if((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Shrink the filter as far as it can go while keeping to its rate of
+   * false positives, for the values added so far.
+   */
+  public void fold() {
+    if(bits == null) // Only as big as the values kept need
+      fill(Math.min(maxBits, numBits(keptCount, fpp)));
+
+    // The number of distinct values, estimated from the bits set
+    long set = 0;
+    for(long word : bits)
+      set += Long.bitCount(word);
+    double m = getNumBits();
+    double n = set >= m ? Double.MAX_VALUE : -m / hashes * Math.log(1 - set / m);
+
+    while(bits.length > MIN_BITS / 64 && Math.pow(1 - Math.exp(-hashes * n / (m / 2)), hashes) <= fpp) {
+      long[] folded = new long[bits.length / 2];
+      for(int i = 0; i < folded.length; i++)
+        folded[i] = bits[i] | bits[i + folded.length];
+      bits = folded;
+      m = getNumBits();
+    }
+  }
+
+  /**
+   * @return where the filters of the data file at path are kept
+   * @see Sidecars
+   */
+  public static Path sidecarPath(Path path) {
+    return Sidecars.of(path, SIDECAR_SUFFIX);
+  }
+
+  public static void write(FileSystem fs, Path sidecar, ColumnBloomFilter[] filters) throws IOException {
+    DataFileWriter<GenericRecord> dfw = new DataFileWriter<GenericRecord>(
+        new GenericDatumWriter<GenericRecord>(SIDECAR_SCHEMA));
+    dfw.create(SIDECAR_SCHEMA, fs.create(sidecar, true));
+    try {
+      for(ColumnBloomFilter f : filters) {
+        if(f.bits == null) f.fold();
+        ByteBuffer bytes = ByteBuffer.allocate(f.bits.length * 8);
+        bytes.asLongBuffer().put(f.bits);
+        GenericData.Record r = new GenericData.Record(SIDECAR_SCHEMA);
+        r.put("column", f.name);
+        r.put("kind", f.kind.name());
+        r.put("hashes", f.hashes);
+        r.put("bits", bytes);
+        dfw.append(r);
+      }
+    } finally {
+      dfw.close();
+    }
+  }
+
+  /**
+   * @return the filters in this sidecar, by column name
+   */
+  public static Map<String, ColumnBloomFilter> read(FileSystem fs, Path sidecar) throws IOException {
+    DataFileStream<GenericRecord> dfs = new DataFileStream<GenericRecord>(fs.open(sidecar),
+        new GenericDatumReader<GenericRecord>(null, SIDECAR_SCHEMA));
+    try {
+      Map<String, ColumnBloomFilter> filters = new HashMap<String, ColumnBloomFilter>();
+      for(GenericRecord r : dfs) {
+        ByteBuffer bytes = (ByteBuffer) r.get("bits");
+        long[] bits = new long[bytes.remaining() / 8];
+        bytes.asLongBuffer().get(bits);
+        String name = r.get("column").toString();
+        filters.put(name, new ColumnBloomFilter(name, ColumnStats.Kind.valueOf(r.get("kind").toString()),
+            (Integer) r.get("hashes"), bits));
+      }
+      return filters;
+    } finally {
+      dfs.close();
+    }
+  }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericFixed;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Statistics of one top-level column of the records written to a file: how
+ * many values and nulls there were, the least and greatest value, and a
+ * sketch of how many distinct values.  Columns of records, arrays, maps and
+ * non-nullable unions only have their counts kept.
+ *
+ * Stats of the same column from different files merge into the stats of all
+ * of them, so a partition's stats are those of its files merged.
+ */
+public class ColumnStats {
+  private static final Log LOG = LogFactory.getLog(ColumnStats.class);
+
+  public static final String SIDECAR_SUFFIX = ".stats";
+
+  // What a column's values are compared and counted as
+  public enum Kind { LONG, DOUBLE, STRING, BOOLEAN, BYTES, OTHER }
+
+  // Each file's stats are written beside it as records of this schema.
+  static final Schema SIDECAR_SCHEMA = SchemaInterner.parse("{\"type\":\"record\",\"name\":\"ColumnStats\","
+      + "\"namespace\":\"com.linkedin.haivvreo\",\"fields\":["
+      + "{\"name\":\"column\",\"type\":\"string\"},"
+      + "{\"name\":\"kind\",\"type\":\"string\"},"
+      + "{\"name\":\"count\",\"type\":\"long\"},"
+      + "{\"name\":\"nulls\",\"type\":\"long\"},"
+      + "{\"name\":\"min\",\"type\":[\"null\",\"long\",\"double\",\"string\",\"boolean\"],\"default\":null},"
+      + "{\"name\":\"max\",\"type\":[\"null\",\"long\",\"double\",\"string\",\"boolean\"],\"default\":null},"
+      + "{\"name\":\"sketch\",\"type\":[\"null\",\"bytes\"],\"default\":null}]}");
+
+  private final String name;
+  private final Kind kind;
+  private long count = 0;
+  private long nulls = 0;
+  private Object min = null; // Of the same Comparable class as each other
+  private Object max = null;
+  private final HyperLogLog sketch;
+
+  public ColumnStats(String name, Kind kind) {
+    this(name, kind, kind == Kind.OTHER ? null : new HyperLogLog());
+  }
+
+  private ColumnStats(String name, Kind kind, HyperLogLog sketch) {
+    this.name = name;
+    this.kind = kind;
+    this.sketch = sketch;
+  }
+
+  /**
+   * @return what values of this schema are kept as
+   */
+  public static Kind kindOf(Schema schema) {
+    if(HaivvreoUtils.isNullableType(schema))
+      schema = HaivvreoUtils.getOtherTypeFromNullableType(schema);
+    switch(schema.getType()) {
+      case INT:
+      case LONG: return Kind.LONG;
+      case FLOAT:
+      case DOUBLE: return Kind.DOUBLE;
+      case STRING:
+      case ENUM: return Kind.STRING;
+      case BOOLEAN: return Kind.BOOLEAN;
+      case BYTES:
+      case FIXED: return Kind.BYTES;
+      default: return Kind.OTHER;
+    }
+  }
+
+  /**
+   * @return a new set of stats for each of this record schema's fields
+   */
+  static ColumnStats[] forSchema(Schema schema) {
+    List<Schema.Field> fields = schema.getFields();
+    ColumnStats[] stats = new ColumnStats[fields.size()];
+    for(int i = 0; i < stats.length; i++)
+      stats[i] = new ColumnStats(fields.get(i).name(), kindOf(fields.get(i).schema()));
+    return stats;
+  }
+
+  /**
+   * @return the value as kept for a column of this kind: a Long, Double,
+   * String or Boolean, whichever of Avro's representations it came in; null
+   * for kinds that aren't ordered
+   */
+  static Object normalize(Kind kind, Object value) {
+    switch(kind) {
+      case LONG: return ((Number) value).longValue();
+      case DOUBLE: return ((Number) value).doubleValue();
+      case STRING: return value.toString(); // Utf8 and String must come out alike
+      case BOOLEAN: return (Boolean) value;
+      default: return null;
+    }
+  }
+
+  /**
+   * @return the hash a normalized value is sketched and filtered by
+   */
+  static long hash(Object value) {
+    if(value instanceof Long) return HyperLogLog.hash((Long) value);
+    if(value instanceof Double) return HyperLogLog.hash(Double.doubleToLongBits((Double) value));
+    if(value instanceof Boolean) return HyperLogLog.hash((Boolean) value ? 1 : 0);
+    return HyperLogLog.hash((String) value);
+  }
+
+  /**
+   * @return the hash of a bytes or fixed value
+   */
+  static long hashBytes(Object value) {
+    if(value instanceof GenericFixed) {
+      byte[] bytes = ((GenericFixed) value).bytes();
+      return HyperLogLog.hash(bytes, 0, bytes.length);
+    }
+    ByteBuffer bb = (ByteBuffer) value;
+    if(bb.hasArray())
+      return HyperLogLog.hash(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+    byte[] bytes = new byte[bb.remaining()];
+    bb.duplicate().get(bytes);
+    return HyperLogLog.hash(bytes, 0, bytes.length);
+  }
+
+  public void add(Object value) {
+    count++;
+    if(value == null) {
+      nulls++;
+      return;
+    }
+    if(kind == Kind.OTHER) return;
+    if(kind == Kind.BYTES) { // Bytes have no order worth keeping, just their number of values.
+      sketch.add(hashBytes(value));
+      return;
+    }
+
+    Object c = normalize(kind, value);
+    sketch.add(hash(c));
+    if(min == null || compare(c, min) < 0) min = c;
+    if(max == null || compare(c, max) > 0) max = c;
+  }
+
+  // Values of a column are all normalized to the same class.
+  @SuppressWarnings("unchecked")
+  private static int compare(Object a, Object b) {
+    return ((Comparable<Object>) a).compareTo(b);
+  }
+
+  /**
+   * Add in the stats of the same column from elsewhere.
+   */
+  public void merge(ColumnStats other) {
+    if(!other.name.equals(name) || other.kind != kind)
+      throw new IllegalArgumentException("Can't merge stats of " + other.name + " (" + other.kind
+          + ") into those of " + name + " (" + kind + ")");
+    count += other.count;
+    nulls += other.nulls;
+    if(other.min != null && (min == null || compare(other.min, min) < 0)) min = other.min;
+    if(other.max != null && (max == null || compare(other.max, max) > 0)) max = other.max;
+    if(sketch != null && other.sketch != null) sketch.merge(other.sketch);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public Kind getKind() {
+    return kind;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getNullCount() {
+    return nulls;
+  }
+
+  /**
+   * @return the least value, as a Long, Double, String or Boolean; null if
+   * there were no values or they have no order
+   */
+  public Object getMin() {
+    return min;
+  }
+
+  public Object getMax() {
+    return max;
+  }
+
+  /**
+   * @return an estimate of the number of distinct non-null values, or -1 if
+   * they aren't counted
+   */
+  public long getDistinctCount() {
+    return sketch == null ? -1 : sketch.estimate();
+  }
+
+  GenericRecord toRecord() {
+    GenericData.Record r = new GenericData.Record(SIDECAR_SCHEMA);
+    r.put("column", name);
+    r.put("kind", kind.name());
+    r.put("count", count);
+    r.put("nulls", nulls);
+    r.put("min", min);
+    r.put("max", max);
+    r.put("sketch", sketch == null ? null : ByteBuffer.wrap(sketch.toBytes()));
+    return r;
+  }
+
+  static ColumnStats fromRecord(GenericRecord r) {
+    ByteBuffer sketch = (ByteBuffer) r.get("sketch");
+    ColumnStats stats = new ColumnStats(r.get("column").toString(), Kind.valueOf(r.get("kind").toString()),
+        sketch == null ? null : HyperLogLog.fromBytes(sketch));
+    stats.count = (Long) r.get("count");
+    stats.nulls = (Long) r.get("nulls");
+    stats.min = fromDatum(r.get("min"));
+    stats.max = fromDatum(r.get("max"));
+    return stats;
+  }
+
+  private static Object fromDatum(Object datum) {
+    return datum instanceof Utf8 ? datum.toString() : datum;
+  }
+
+  /**
+   * @return where the stats of the data file at path are kept
+   * @see Sidecars
+   */
+  public static Path sidecarPath(Path path) {
+    return Sidecars.of(path, SIDECAR_SUFFIX);
+  }
+
+  public static void write(FileSystem fs, Path sidecar, ColumnStats[] stats) throws IOException {
+    DataFileWriter<GenericRecord> dfw = new DataFileWriter<GenericRecord>(
+        new GenericDatumWriter<GenericRecord>(SIDECAR_SCHEMA));
+    dfw.create(SIDECAR_SCHEMA, fs.create(sidecar, true));
+    try {
+      for(ColumnStats s : stats)
+        dfw.append(s.toRecord());
+    } finally {
+      dfw.close();
+    }
+  }
+
+  public static List<ColumnStats> read(FileSystem fs, Path sidecar) throws IOException {
+    FSDataInputStream in = fs.open(sidecar);
+    DataFileStream<GenericRecord> dfs = new DataFileStream<GenericRecord>(in,
+        new GenericDatumReader<GenericRecord>(null, SIDECAR_SCHEMA));
+    try {
+      List<ColumnStats> stats = new ArrayList<ColumnStats>();
+      for(GenericRecord r : dfs)
+        stats.add(fromRecord(r));
+      return stats;
+    } finally {
+      dfs.close();
+    }
+  }
+
+  /**
+   * Merge the stats of every file in a partition's directory, by column.
+   * Stats left by task attempts whose files have since been removed (those
+   * that failed or lost out to another attempt) aren't counted.
+   *
+   * @return the stats of each column, in the order first seen; empty if
+   * none of the files have stats
+   */
+  public static Map<String, ColumnStats> readPartition(FileSystem fs, Path dir) throws IOException {
+    Map<String, ColumnStats> merged = new LinkedHashMap<String, ColumnStats>();
+    FileStatus[] files = fs.listStatus(dir);
+    if(files == null) return merged;
+
+    for(FileStatus file : files) {
+      String name = Sidecars.dataFileName(file.getPath().getName(), SIDECAR_SUFFIX);
+      if(file.isDir() || name == null) continue;
+      Path data = new Path(dir, name);
+      if(!fs.exists(data)) {
+        LOG.info("Ignoring stats of " + data + ", which is no longer there.");
+        continue;
+      }
+
+      for(ColumnStats s : read(fs, file.getPath())) {
+        ColumnStats existing = merged.get(s.getName());
+        if(existing == null)
+          merged.put(s.getName(), s);
+        else if(existing.getKind() == s.getKind())
+          existing.merge(s);
+        else
+          LOG.warn("Not merging stats of " + s.getName() + " from " + data + ", which was written as "
+              + s.getKind() + " rather than " + existing.getKind());
+      }
+    }
+    return merged;
+  }
+}
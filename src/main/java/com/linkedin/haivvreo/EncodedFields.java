@@ -0,0 +1,96 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.io.DecoderFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Reads the values of some of the top-level fields of records still held as
+ * their encoded bytes, skipping over the rest, so that records passed through
+ * unchanged needn't be decoded whole just to look at a few of their fields.
+ *
+ * Values come out as they would be read by Avro, save that records, arrays
+ * and maps are skipped too: their fields are given a placeholder that is only
+ * good for telling them from null.  Fixed values come as ByteBuffers.
+ */
+class EncodedFields {
+  // What a record, array or map value is read as
+  static final Object SKIPPED = new Object();
+
+  private final List<Schema.Field> fields;
+  private final boolean[] wanted;
+  private final Object[] values;
+  private int lastWanted = -1; // Fields after this aren't read at all
+  private BinaryDecoder decoder = null;
+
+  public EncodedFields(Schema schema) {
+    this.fields = schema.getFields();
+    this.wanted = new boolean[fields.size()];
+    this.values = new Object[fields.size()];
+  }
+
+  public void want(int field) {
+    wanted[field] = true;
+    lastWanted = Math.max(lastWanted, field);
+  }
+
+  /**
+   * @return the values of the record's fields, by position; those of fields
+   * that weren't wanted are null.  The array is reused by the next read.
+   */
+  public Object[] read(ByteBuffer encoded) throws IOException {
+    decoder = DecoderFactory.get().binaryDecoder(encoded.array(), encoded.arrayOffset() + encoded.position(),
+        encoded.remaining(), decoder);
+    for(int i = 0; i <= lastWanted; i++) {
+      Schema schema = fields.get(i).schema();
+      if(wanted[i])
+        values[i] = read(schema, decoder);
+      else
+        GenericDatumReader.skip(schema, decoder);
+    }
+    return values;
+  }
+
+  private static Object read(Schema schema, Decoder in) throws IOException {
+    switch(schema.getType()) {
+      case UNION: return read(schema.getTypes().get(in.readIndex()), in);
+      case NULL: in.readNull(); return null;
+      case BOOLEAN: return in.readBoolean();
+      case INT: return in.readInt();
+      case LONG: return in.readLong();
+      case FLOAT: return in.readFloat();
+      case DOUBLE: return in.readDouble();
+      case STRING: return in.readString(null);
+      case ENUM: return schema.getEnumSymbols().get(in.readEnum());
+      case BYTES: return in.readBytes(null);
+      case FIXED:
+        byte[] bytes = new byte[schema.getFixedSize()];
+        in.readFixed(bytes);
+        return ByteBuffer.wrap(bytes);
+      default:
+        GenericDatumReader.skip(schema, in);
+        return SKIPPED;
+    }
+  }
+}
@@ -27,7 +27,6 @@ import org.apache.hadoop.hive.ql.exec.Utilities;
 import org.apache.hadoop.mapred.JobConf;
 
 import java.io.IOException;
-import java.net.URL;
 import java.util.List;
 import java.util.Properties;
 
@@ -41,7 +40,8 @@ class HaivvreoUtils {
           + SCHEMA_URL + " specified, can't determine table schema";
 
   /**
-   * Determine the schema to that's been provided for Avro serde work.
+   * Determine the schema to that's been provided for Avro serde work.  Schemas
+   * given by URL are cached for the whole JVM (see {@link SchemaUrlCache}).
    * @param properties containing a key pointing to the schema, one way or another
    * @return schema to use while serdeing the avro file
    * @throws IOException if error while trying to read the schema from another location
@@ -51,21 +51,38 @@ class HaivvreoUtils {
       throws IOException, HaivvreoException {
     String schemaString = properties.getProperty(SCHEMA_LITERAL);
     if(schemaString != null && !schemaString.equals(SCHEMA_NONE))
-      return Schema.parse(schemaString);
+      return SchemaInterner.parse(schemaString);
 
     // Try pulling directly from URL
     schemaString = properties.getProperty(SCHEMA_URL);
     if(schemaString == null || schemaString.equals(SCHEMA_NONE))
       throw new HaivvreoException(EXCEPTION_MESSAGE);
 
+    // Inside a job, the schema will usually have been read when it was set up.
+    // Outside one, the configuration may outlive the schema, so read it afresh.
+    if(conf instanceof JobConf && insideMRJob((JobConf) conf)) {
+      Schema shared = SchemaTable.lookupUrl(conf, schemaString);
+      if(shared != null) return shared;
+    }
+
     try {
-      if(schemaString.toLowerCase().startsWith("hdfs://"))
-        return getSchemaFromHDFS(schemaString, conf);
+      return SchemaUrlCache.get().lookup(schemaString, conf);
     } catch(IOException ioe) {
-      throw new HaivvreoException("Unable to read schema from HDFS: " + schemaString, ioe);
+      if(schemaString.toLowerCase().startsWith("hdfs://"))
+        throw new HaivvreoException("Unable to read schema from HDFS: " + schemaString, ioe);
+      throw ioe;
     }
+  }
 
-    return Schema.parse(new URL(schemaString).openStream());
+  /**
+   * @return the URL the schema is read from, or null if it's given literally
+   * (or not at all)
+   */
+  static String getSchemaUrl(Properties properties) {
+    String literal = properties.getProperty(SCHEMA_LITERAL);
+    if(literal != null && !literal.equals(SCHEMA_NONE)) return null;
+    String url = properties.getProperty(SCHEMA_URL);
+    return url == null || url.equals(SCHEMA_NONE) ? null : url;
   }
 
   /**
@@ -93,7 +110,7 @@ class HaivvreoUtils {
 
     try {
       in = fs.open(new Path(schemaHDFSUrl));
-      Schema s = Schema.parse(in);
+      Schema s = SchemaInterner.parse(in);
       return s;
     } finally {
       if(in != null) in.close();
@@ -124,6 +141,18 @@ class HaivvreoUtils {
     return types.get(0).getType().equals(Schema.Type.NULL) ? types.get(1) : types.get(0);
   }
 
+  /**
+   * Look up a Haivvreo setting, preferring the value given in the table's
+   * properties over the one in the job's configuration.
+   * @return the value found, or defaultValue if set in neither place
+   */
+  static String getTableOrJobProperty(Configuration conf, Properties properties, String key, String defaultValue) {
+    String value = properties == null ? null : properties.getProperty(key);
+    if(value == null && conf != null)
+      value = conf.get(key);
+    return value == null ? defaultValue : value;
+  }
+
   /**
    * Determine if we're being executed from within an MR job or as part
    * of a select * statement.  The signals for this varies between Hive versions.
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * HyperLogLog sketch of the number of distinct values in a column.  With
+ * the default 4096 registers, estimates are typically within 2% of the true
+ * count however many values there are, and sketches of the same precision
+ * merge into the sketch of all their values together.
+ *
+ * Values are added by 64-bit hash, so the same value must always hash the
+ * same way; see the hash methods here.
+ */
+class HyperLogLog {
+  public static final int DEFAULT_PRECISION = 12;
+
+  private final int precision;
+  private final byte[] registers;
+
+  public HyperLogLog() {
+    this(DEFAULT_PRECISION);
+  }
+
+  public HyperLogLog(int precision) {
+    if(precision < 4 || precision > 18)
+      throw new IllegalArgumentException("HyperLogLog precision must be between 4 and 18: " + precision);
+    this.precision = precision;
+    this.registers = new byte[1 << precision];
+  }
+
+  public void add(long hash) {
+    int index = (int) (hash >>> (64 - precision));
+    // The rest of the hash, with a bit set to stop the count running past it
+    long rest = (hash << precision) | (1L << (precision - 1));
+    byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+    if(rank > registers[index]) registers[index] = rank;
+  }
+
+  public void merge(HyperLogLog other) {
+    if(other.precision != precision)
+      throw new IllegalArgumentException("Can't merge sketches of precision " + other.precision + " into " + precision);
+    for(int i = 0; i < registers.length; i++)
+      if(other.registers[i] > registers[i]) registers[i] = other.registers[i];
+  }
+
+  public long estimate() {
+    int m = registers.length;
+    double sum = 0;
+    int zeros = 0;
+    for(byte r : registers) {
+      sum += 1.0 / (1L << r);
+      if(r == 0) zeros++;
+    }
+    double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+    double estimate = alpha * m * m / sum;
+    // Small counts are better estimated from how many registers are unused.
+    if(estimate <= 2.5 * m && zeros > 0)
+      estimate = m * Math.log((double) m / zeros);
+    return Math.round(estimate);
+  }
+
+  /**
+   * @return the precision followed by the registers
+   */
+  public byte[] toBytes() {
+    byte[] bytes = new byte[registers.length + 1];
+    bytes[0] = (byte) precision;
+    System.arraycopy(registers, 0, bytes, 1, registers.length);
+    return bytes;
+  }
+
+  public static HyperLogLog fromBytes(ByteBuffer bytes) {
+    HyperLogLog hll = new HyperLogLog(bytes.get(bytes.position()));
+    if(bytes.remaining() != hll.registers.length + 1)
+      throw new IllegalArgumentException("Not a HyperLogLog sketch: " + bytes.remaining() + " bytes");
+    ByteBuffer b = bytes.duplicate();
+    b.position(b.position() + 1);
+    b.get(hll.registers);
+    return hll;
+  }
+
+  // Murmur3's finalizer, spreading the bits of a value across the hash.
+  public static long hash(long value) {
+    long h = value;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  public static long hash(CharSequence s) {
+    long h = 0xcbf29ce484222325L; // FNV-1a, finished off as above
+    for(int i = 0; i < s.length(); i++) {
+      h ^= s.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return hash(h);
+  }
+
+  public static long hash(byte[] bytes, int offset, int length) {
+    long h = 0xcbf29ce484222325L;
+    for(int i = offset; i < offset + length; i++) {
+      h ^= bytes[i] & 0xff;
+      h *= 0x100000001b3L;
+    }
+    return hash(h);
+  }
+}
@@ -18,40 +18,173 @@ package com.linkedin.haivvreo;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Cache for objects whose creation only depends on some other set of objects
  * and therefore can be used against other equivalent versions of those
  * objects.  Essentially memoizes instance creation.
  *
+ * Seeds are matched by equals, so must implement it along with hashCode.
+ * The cache is safe to share between threads: lookups don't lock, and when
+ * several threads want the same missing instance, one creates it while the
+ * others wait for it.  Once the instances' total weight (by default, their
+ * number) goes over the cache's maximum, the least recently used are dropped.
+ *
  * @param <SeedObject>  Object that determines the instance
  * @param <Instance>  Instance that will be created from SeedObject.
  */
 public abstract class InstanceCache<SeedObject, Instance> {
   private static final Log LOG = LogFactory.getLog(InstanceCache.class);
-  HashMap<Integer, Instance> cache = new HashMap<Integer, Instance>();
-  
-  public InstanceCache() {}
+
+  public static final long DEFAULT_MAX_WEIGHT = 1000;
+  // Once over the maximum, evict down to this fraction of it, so eviction
+  // (which has to sort the entries) happens only now and then.
+  static final double LOW_WATER = 0.75;
+
+  private static class Entry<Instance> {
+    final FutureTask<Instance> creation;
+    final Thread creator = Thread.currentThread();
+    volatile long lastUsed;
+    volatile long weight = -1; // Set once created
+
+    Entry(FutureTask<Instance> creation) {
+      this.creation = creation;
+    }
+  }
+
+  private final long maxWeight;
+  private final ConcurrentHashMap<SeedObject, Entry<Instance>> cache = new ConcurrentHashMap<SeedObject, Entry<Instance>>();
+  private final AtomicLong clock = new AtomicLong();
+  private final AtomicLong weight = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public InstanceCache() {
+    this(DEFAULT_MAX_WEIGHT);
+  }
+
+  public InstanceCache(long maxWeight) {
+    if(maxWeight < 1)
+      throw new IllegalArgumentException("Invalid maximum weight for cache: " + maxWeight);
+    this.maxWeight = maxWeight;
+  }
 
   /**
    * Retrieve (or create if it doesn't exist) the correct Instance for this
    * SeedObject
    */
-  public Instance retrieve(SeedObject hv) throws HaivvreoException {
-    if(LOG.isDebugEnabled()) LOG.debug("Checking for hv: " + hv.toString());
-
-    if(cache.containsKey(hv.hashCode())) {
-      if(LOG.isDebugEnabled()) LOG.debug("Returning cache result.");
-      return cache.get(hv.hashCode());
+  public Instance retrieve(final SeedObject hv) throws HaivvreoException {
+    Entry<Instance> entry = cache.get(hv);
+    if(entry != null) {
+      hits.incrementAndGet();
+      entry.lastUsed = clock.incrementAndGet();
+      return get(hv, entry);
     }
 
-    if(LOG.isDebugEnabled()) LOG.debug("Creating new instance and storing in cache");
+    Entry<Instance> created = new Entry<Instance>(new FutureTask<Instance>(new Callable<Instance>() {
+      @Override
+      public Instance call() throws HaivvreoException {
+        return makeInstance(hv);
+      }
+    }));
+    created.lastUsed = clock.incrementAndGet();
+    entry = cache.putIfAbsent(hv, created);
+    if(entry != null) {
+      hits.incrementAndGet(); // Someone else is creating it.
+      return get(hv, entry);
+    }
 
-    Instance instance = makeInstance(hv);
-    cache.put(hv.hashCode(), instance);
+    misses.incrementAndGet();
+    if(LOG.isDebugEnabled()) LOG.debug("Creating new instance for " + hv + " and storing in cache");
+    created.creation.run();
+    Instance instance = get(hv, created);
+    created.weight = weigh(hv, instance);
+    if(weight.addAndGet(created.weight) > maxWeight)
+      evict();
     return instance;
   }
 
+  private Instance get(SeedObject hv, Entry<Instance> entry) throws HaivvreoException {
+    // Waiting on ourselves would never end.
+    if(entry.creator == Thread.currentThread() && !entry.creation.isDone())
+      throw new HaivvreoException("Creating the instance for " + hv + " needs that same instance");
+    try {
+      return entry.creation.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new HaivvreoException("Interrupted waiting for instance to be created", e);
+    } catch (ExecutionException e) {
+      // Failures aren't kept, so the next caller tries again.
+      cache.remove(hv, entry);
+      Throwable cause = e.getCause();
+      if(cause instanceof HaivvreoException) throw (HaivvreoException) cause;
+      if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if(cause instanceof Error) throw (Error) cause;
+      throw new HaivvreoException("Unable to create instance", cause);
+    }
+  }
+
+  // Drop the least recently used instances until under the low water mark.
+  private synchronized void evict() {
+    if(weight.get() <= maxWeight) return; // Someone else got here first
+
+    List<Map.Entry<SeedObject, Entry<Instance>>> entries =
+        new ArrayList<Map.Entry<SeedObject, Entry<Instance>>>(cache.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<SeedObject, Entry<Instance>>>() {
+      @Override
+      public int compare(Map.Entry<SeedObject, Entry<Instance>> e1, Map.Entry<SeedObject, Entry<Instance>> e2) {
+        long u1 = e1.getValue().lastUsed;
+        long u2 = e2.getValue().lastUsed;
+        return u1 < u2 ? -1 : (u1 == u2 ? 0 : 1);
+      }
+    });
+
+    long target = (long) (maxWeight * LOW_WATER);
+    for(Map.Entry<SeedObject, Entry<Instance>> e : entries) {
+      if(weight.get() <= target) break;
+      Entry<Instance> entry = e.getValue();
+      if(entry.weight < 0) continue; // Not weighed yet
+      if(cache.remove(e.getKey(), entry)) {
+        weight.addAndGet(-entry.weight);
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * How much an instance counts towards the cache's maximum weight.
+   * Defaults to 1, so the maximum is a number of instances.
+   */
+  protected long weigh(SeedObject hv, Instance instance) {
+    return 1;
+  }
+
   protected abstract Instance makeInstance(SeedObject hv) throws HaivvreoException ;
+
+  public int size() {
+    return cache.size();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
 }
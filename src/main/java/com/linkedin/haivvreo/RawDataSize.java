@@ -0,0 +1,103 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.avro.util.Utf8;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Works out the raw size of an Avro datum, as Hive's statistics count it:
+ * the size of its values uncompressed and unencoded, with numbers at their
+ * full width, strings at their length in UTF-8 and bytes at their length.
+ * This is what Hive uses to decide, for instance, whether a table is small
+ * enough for a map join, so it's the size of the data in memory rather than
+ * on disk that counts.
+ */
+class RawDataSize {
+  private RawDataSize() {}
+
+  public static long of(Object datum, Schema schema) {
+    if(datum == null) return 0;
+
+    switch(schema.getType()) {
+      case RECORD:
+        long size = 0;
+        IndexedRecord record = (IndexedRecord) datum;
+        for(Schema.Field field : schema.getFields())
+          size += of(record.get(field.pos()), field.schema());
+        return size;
+      case ARRAY:
+        size = 0;
+        Schema elementType = schema.getElementType();
+        for(Object element : (List<?>) datum)
+          size += of(element, elementType);
+        return size;
+      case MAP:
+        size = 0;
+        Schema valueType = schema.getValueType();
+        for(Map.Entry<?, ?> e : ((Map<?, ?>) datum).entrySet())
+          size += stringSize(e.getKey()) + of(e.getValue(), valueType);
+        return size;
+      case UNION:
+        return of(datum, schema.getTypes().get(GenericData.get().resolveUnion(schema, datum)));
+      case STRING:
+      case ENUM:
+        return stringSize(datum);
+      case BYTES:
+        return ((ByteBuffer) datum).remaining();
+      case FIXED:
+        return schema.getFixedSize();
+      case INT:
+      case FLOAT:
+        return 4;
+      case LONG:
+      case DOUBLE:
+        return 8;
+      case BOOLEAN:
+        return 1;
+      default:
+        return 0;
+    }
+  }
+
+  private static long stringSize(Object s) {
+    if(s instanceof Utf8) return ((Utf8) s).getByteLength();
+    // Counted rather than encoded, to save copying the string
+    String string = s.toString();
+    long size = 0;
+    for(int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      if(c < 0x80) {
+        size += 1;
+      } else if(c < 0x800) {
+        size += 2;
+      } else if(Character.isHighSurrogate(c) && i + 1 < string.length()
+          && Character.isLowSurrogate(string.charAt(i + 1))) {
+        size += 4;
+        i++;
+      } else {
+        size += 3;
+      }
+    }
+    return size;
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.avro.Schema;
+import org.apache.hadoop.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-JVM table of parsed schemas.  The same schema text is parsed again and
+ * again (for each split, serde and shuffled record), so each distinct text
+ * is parsed only once, and every schema with the same compact JSON form is
+ * handed out as a single instance.  Besides saving the parsing, this lets
+ * schemas be compared by identity, which much of Haivvreo does first.
+ *
+ * Schemas handed out are shared, so mustn't be changed (by adding props).
+ */
+class SchemaInterner {
+  // Past this many, the tables are cleared rather than left to grow.  A JVM
+  // sees only a handful of schemas unless something is going wrong.
+  static final int MAX_SCHEMAS = 1024;
+
+  private static final Map<String, Schema> byText = new ConcurrentHashMap<String, Schema>();
+  private static final Map<String, Schema> byCompactText = new ConcurrentHashMap<String, Schema>();
+
+  private SchemaInterner() {}
+
+  /**
+   * @return the schema for this text, parsing it only if it hasn't been seen
+   */
+  public static Schema parse(String text) {
+    Schema schema = byText.get(text);
+    if(schema != null) return schema;
+
+    schema = intern(Schema.parse(text));
+    if(byText.size() >= MAX_SCHEMAS) byText.clear();
+    byText.put(text, schema);
+    return schema;
+  }
+
+  /**
+   * Read in a schema's text, in UTF-8, and parse it as {@link #parse(String)}
+   * does.  The stream is not closed.
+   */
+  public static Schema parse(InputStream in) throws IOException {
+    ByteArrayOutputStream text = new ByteArrayOutputStream();
+    IOUtils.copyBytes(in, text, 4096, false);
+    return parse(text.toString("UTF-8"));
+  }
+
+  /**
+   * @return the instance held for schemas identical to this one, which is
+   * this one if none is held yet
+   */
+  public static Schema intern(Schema schema) {
+    String compact = schema.toString(false);
+    Schema existing = byCompactText.get(compact);
+    if(existing != null) return existing;
+
+    if(byCompactText.size() >= MAX_SCHEMAS) byCompactText.clear();
+    byCompactText.put(compact, schema);
+    return schema;
+  }
+}
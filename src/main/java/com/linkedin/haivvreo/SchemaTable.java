@@ -0,0 +1,200 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Per-JVM table of schemas keyed by 64-bit fingerprint, allowing records to
+ * be sent with just the fingerprint of their schema rather than its text.
+ *
+ * Schemas published to a job's configuration are "shared" with that job:
+ * every task in it can resolve their fingerprints, so writers with the job's
+ * configuration need not send their text.  Whether a schema is shared is
+ * always asked of the configuration being written with, never remembered by
+ * the JVM, since one JVM (a CLI session, HiveServer, local mode) may set up
+ * many jobs sharing different schemas.  Any other schema is learned the first
+ * time its text is read and can be resolved from then on, but must still be
+ * sent with each record, since records may be sorted and merged in any order
+ * before being read.
+ *
+ * Fingerprints are taken over the schema's full JSON rather than Avro's
+ * parsing canonical form so that the schema resolved by the reader is equal,
+ * docs, defaults and all, to the one the writer used.
+ */
+class SchemaTable {
+  private static final Log LOG = LogFactory.getLog(SchemaTable.class);
+
+  // Comma-separated hex fingerprints of the schemas shared with the job...
+  public static final String SHARED_SCHEMAS = "haivvreo.shared.schemas";
+  // ...each of which has its text stored under this prefix plus the fingerprint.
+  public static final String SHARED_SCHEMA_PREFIX = "haivvreo.shared.schema.";
+  // Fingerprint of the schema found at a schema.url when the job was set up,
+  // stored under this prefix plus the URL.
+  public static final String SHARED_URL_PREFIX = "haivvreo.shared.schema.url.";
+
+  // Past this many, the table is cleared rather than left to grow, as
+  // SchemaInterner's are.  Schemas shared with a job are loaded again from its
+  // configuration when next missed; any other is sent with each record.
+  static final int MAX_SCHEMAS = SchemaInterner.MAX_SCHEMAS;
+
+  // Fingerprints identify schemas' text, so this can safely span jobs.
+  private static final ConcurrentMap<Long, Schema> schemas = new ConcurrentHashMap<Long, Schema>();
+
+  // The last configuration schemas were shared with, to load them from again
+  // for whatever has no configuration of its own.
+  private static volatile Configuration lastShared;
+
+  private SchemaTable() {}
+
+  public static long fingerprint(Schema schema) {
+    return fingerprint(schema.toString(false));
+  }
+
+  public static long fingerprint(String schemaText) {
+    try {
+      return SchemaNormalization.fingerprint64(schemaText.getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e); // UTF-8 is always supported
+    }
+  }
+
+  /**
+   * @return the schema with this fingerprint, or null if it hasn't been seen.
+   */
+  public static Schema lookup(long fingerprint) {
+    return schemas.get(fingerprint);
+  }
+
+  /**
+   * @return the schema with this fingerprint, loading the schemas shared
+   * with the job of this configuration (or, if it's null, the last job seen)
+   * should it not be in the table; null if it's still not known
+   */
+  public static Schema lookupShared(Configuration conf, long fingerprint) {
+    Schema schema = lookup(fingerprint);
+    if(schema != null) return schema;
+    loadShared(conf != null ? conf : lastShared);
+    return lookup(fingerprint);
+  }
+
+  /**
+   * Can every task in the job with this configuration resolve this
+   * fingerprint without being sent the schema's text?
+   */
+  public static boolean isShared(Configuration conf, long fingerprint) {
+    return conf != null && conf.get(SHARED_SCHEMA_PREFIX + Long.toHexString(fingerprint)) != null;
+  }
+
+  /**
+   * Remember a schema that has been read in full, so its fingerprint can be
+   * resolved without parsing it again.
+   * @return the schema previously known for this fingerprint, if any, else
+   * schema; whichever it is, every caller registering the fingerprint at once
+   * gets the same instance
+   */
+  public static Schema register(long fingerprint, Schema schema) {
+    Schema existing = schemas.get(fingerprint);
+    if(existing != null) return existing;
+
+    if(schemas.size() >= MAX_SCHEMAS) schemas.clear();
+    existing = schemas.putIfAbsent(fingerprint, schema);
+    return existing == null ? schema : existing;
+  }
+
+  // Forget every schema. For tests.
+  static void clear() {
+    schemas.clear();
+    lastShared = null;
+  }
+
+  /**
+   * Publish a schema to the job, making it resolvable in every task.  This
+   * must be called on the configuration the job is created from, before the
+   * job is submitted.
+   */
+  public static long share(Configuration conf, Schema schema) {
+    String text = schema.toString(false);
+    long fingerprint = fingerprint(text);
+    String hex = Long.toHexString(fingerprint);
+
+    if(conf.get(SHARED_SCHEMA_PREFIX + hex) == null) {
+      String list = conf.get(SHARED_SCHEMAS);
+      conf.set(SHARED_SCHEMAS, list == null || list.isEmpty() ? hex : list + "," + hex);
+      conf.set(SHARED_SCHEMA_PREFIX + hex, text);
+    }
+
+    register(fingerprint, schema);
+    return fingerprint;
+  }
+
+  /**
+   * Publish a schema read from a schema.url to the job, so that tasks need
+   * not read it from there again.  As with {@link #share}, this must be
+   * called before the job is submitted.
+   */
+  public static long shareUrl(Configuration conf, String url, Schema schema) {
+    long fingerprint = share(conf, schema);
+    conf.set(SHARED_URL_PREFIX + url, Long.toHexString(fingerprint));
+    return fingerprint;
+  }
+
+  /**
+   * @return the schema that was at url when the job was set up, or null if
+   * it wasn't shared with the job.
+   */
+  public static Schema lookupUrl(Configuration conf, String url) {
+    if(conf == null) return null;
+    String hex = conf.get(SHARED_URL_PREFIX + url);
+    if(hex == null) return null;
+
+    loadShared(conf);
+    long fingerprint = new BigInteger(hex, 16).longValue();
+    return isShared(conf, fingerprint) ? lookup(fingerprint) : null;
+  }
+
+  /**
+   * Load any schemas shared with the job into the table.
+   */
+  public static void loadShared(Configuration conf) {
+    if(conf == null) return;
+    String list = conf.get(SHARED_SCHEMAS);
+    if(list == null) return;
+    lastShared = conf;
+
+    for(String hex : list.split(",")) {
+      if(hex.isEmpty()) continue;
+      long fingerprint = new BigInteger(hex, 16).longValue();
+      if(schemas.containsKey(fingerprint)) continue; // Known already, from this job or another
+
+      String text = conf.get(SHARED_SCHEMA_PREFIX + hex);
+      if(text == null) {
+        LOG.warn("Shared schema " + hex + " is listed in " + SHARED_SCHEMAS + " but its text is missing.");
+        continue;
+      }
+      register(fingerprint, SchemaInterner.parse(text));
+    }
+  }
+}
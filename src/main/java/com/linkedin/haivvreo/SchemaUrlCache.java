@@ -0,0 +1,221 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.avro.Schema;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-JVM cache of the schemas read from schema.url, so that a task asked
+ * for a table's schema over and over (Hive initializes serdes many times
+ * per query) reads it from its server once.
+ *
+ * A schema is used for a while after it's read, then checked for changes:
+ * by modification time on HDFS, and with If-Modified-Since and If-None-Match
+ * over HTTP, so an unchanged schema isn't sent again.  Failures to read a
+ * schema are remembered too, for a shorter while, so a server that's down
+ * isn't asked again by every call.  If a schema that has been read before
+ * can't be checked, the one already read goes on being used.
+ */
+class SchemaUrlCache {
+  private static final Log LOG = LogFactory.getLog(SchemaUrlCache.class);
+
+  // Seconds a schema is used for before being checked again. 0 to not cache.
+  public static final String TTL = "haivvreo.schema.url.cache.ttl";
+  // Seconds a failure to read a schema is remembered for.
+  public static final String FAILURE_TTL = "haivvreo.schema.url.cache.failure.ttl";
+  // Schemas kept, least recently used going first.
+  public static final String MAX_ENTRIES = "haivvreo.schema.url.cache.size";
+
+  static final long DEFAULT_TTL = 300;
+  static final long DEFAULT_FAILURE_TTL = 30;
+  static final int DEFAULT_MAX_ENTRIES = 100;
+
+  private static final SchemaUrlCache instance = new SchemaUrlCache();
+
+  private static class Entry {
+    Schema schema;       // Last schema read, if any
+    long lastModified;   // When it was last changed, 0 if unknown
+    String etag;         // Its HTTP entity tag, if any
+    IOException failure; // Why the last attempt failed, if it did
+    long expires;        // Until when the above can be used without checking
+  }
+
+  // Least recently used first, so the eldest is the one to evict.
+  private class Entries extends LinkedHashMap<String, Entry> {
+    private static final long serialVersionUID = 1L;
+
+    Entries() {
+      super(16, 0.75f, true);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+      return size() > maxEntries;
+    }
+  }
+
+  private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+  private final Map<String, Entry> entries = new Entries();
+
+  SchemaUrlCache() {}
+
+  /**
+   * @return the cache shared by everything in the JVM
+   */
+  public static SchemaUrlCache get() {
+    return instance;
+  }
+
+  // Overridden in tests
+  long now() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * @return the schema at url, read from there only if it's not been read
+   * recently or has changed since
+   * @throws IOException if the schema can't be read, or couldn't be recently
+   */
+  public Schema lookup(String url, Configuration conf) throws IOException {
+    long ttl = 1000 * (conf == null ? DEFAULT_TTL : conf.getLong(TTL, DEFAULT_TTL));
+    long failureTtl = 1000 * (conf == null ? DEFAULT_FAILURE_TTL : conf.getLong(FAILURE_TTL, DEFAULT_FAILURE_TTL));
+    maxEntries = conf == null ? DEFAULT_MAX_ENTRIES : conf.getInt(MAX_ENTRIES, DEFAULT_MAX_ENTRIES);
+
+    if(ttl <= 0) {
+      Entry entry = new Entry();
+      load(url, conf, entry);
+      return entry.schema;
+    }
+
+    Entry entry;
+    synchronized(entries) {
+      entry = entries.get(url);
+      if(entry == null) {
+        entry = new Entry();
+        entries.put(url, entry);
+      }
+    }
+
+    // One thread reads or checks a given schema while any others wait for it.
+    synchronized(entry) {
+      long now = now();
+      if(now < entry.expires) {
+        if(entry.failure != null)
+          throw new IOException("Unable to read schema from " + url + " recently; not trying again for another "
+              + (entry.expires - now) / 1000 + "s: " + entry.failure.getMessage(), entry.failure);
+        return entry.schema;
+      }
+
+      try {
+        load(url, conf, entry);
+      } catch (MalformedURLException e) {
+        throw e; // A mistake in the table, not a failing server; nothing to wait for.
+      } catch (IOException e) {
+        entry.expires = now + failureTtl;
+        if(entry.schema != null) {
+          LOG.warn("Unable to check schema at " + url + " for changes. Using the one read before.", e);
+          return entry.schema;
+        }
+        entry.failure = e;
+        throw e;
+      }
+      entry.failure = null;
+      entry.expires = now + ttl;
+      return entry.schema;
+    }
+  }
+
+  // Read the schema into entry, unless it's there already and hasn't changed.
+  private void load(String url, Configuration conf, Entry entry) throws IOException {
+    try {
+      if(url.toLowerCase().startsWith("hdfs://"))
+        loadFromFileSystem(url, conf, entry);
+      else
+        loadFromUrl(url, entry);
+    } catch (RuntimeException e) {
+      throw new IOException("Unable to parse schema at " + url, e);
+    }
+  }
+
+  private void loadFromFileSystem(String url, Configuration conf, Entry entry) throws IOException {
+    long modified = FileSystem.get(conf).getFileStatus(new Path(url)).getModificationTime();
+    if(entry.schema != null && modified == entry.lastModified) {
+      if(LOG.isDebugEnabled()) LOG.debug("Schema at " + url + " is unchanged");
+      return;
+    }
+    entry.schema = HaivvreoUtils.getSchemaFromHDFS(url, conf);
+    entry.lastModified = modified;
+  }
+
+  private void loadFromUrl(String url, Entry entry) throws IOException {
+    URLConnection connection = new URL(url).openConnection();
+    if(entry.schema != null) {
+      if(entry.lastModified != 0) connection.setIfModifiedSince(entry.lastModified);
+      if(entry.etag != null) connection.setRequestProperty("If-None-Match", entry.etag);
+    }
+
+    if(entry.schema != null) {
+      boolean unchanged;
+      if(connection instanceof HttpURLConnection) {
+        unchanged = ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+      } else {
+        long modified = connection.getLastModified();
+        unchanged = modified != 0 && modified == entry.lastModified;
+      }
+      if(unchanged) {
+        if(LOG.isDebugEnabled()) LOG.debug("Schema at " + url + " is unchanged");
+        closeQuietly(connection);
+        return;
+      }
+    }
+
+    InputStream in = connection.getInputStream();
+    try {
+      entry.schema = SchemaInterner.parse(in);
+    } finally {
+      in.close();
+    }
+    entry.lastModified = connection.getLastModified();
+    entry.etag = connection.getHeaderField("ETag");
+  }
+
+  // Having asked, a connection may be holding a stream open that we don't want.
+  private static void closeQuietly(URLConnection connection) {
+    if(connection instanceof HttpURLConnection) {
+      ((HttpURLConnection) connection).disconnect();
+      return;
+    }
+    try {
+      connection.getInputStream().close();
+    } catch (IOException e) {
+      // Nothing was left open, then.
+    }
+  }
+}
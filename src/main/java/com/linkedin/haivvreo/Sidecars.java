@@ -0,0 +1,84 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.hadoop.fs.Path;
+
+import java.net.URI;
+
+/**
+ * Where the files kept beside each data file, such as its column stats, are
+ * written and found.
+ *
+ * Hive has a task write its file to _task_tmp.dir/[partitions/]_tmp.taskid,
+ * moves it to _tmp.dir/[partitions/]taskid once the task succeeds and, once
+ * the job's done, moves whatever's in _tmp.dir to dir, after throwing out
+ * temporary files and all but the biggest file of each task.  A sidecar is
+ * written straight to where its file will be after the task, so is moved on
+ * with it from there.  Its name starts with a dot, so that Hive doesn't read
+ * it as data, and has its kind bracketed before the file's name, as bucketed
+ * files have their prefix, so that Hive doesn't take it for the output of
+ * the same task as the file.  (Two attempts at one task do leave sidecars
+ * Hive takes for each other's, so either's may be thrown out; then the file
+ * kept has no sidecar, which is taken as nothing being known about it.)
+ */
+class Sidecars {
+  private static final String TEMP_PREFIX = "_tmp.";
+  private static final String TASK_TEMP_PREFIX = "_task_tmp.";
+
+  private Sidecars() {}
+
+  /**
+   * @return the sidecar, with this suffix, of the data file at path
+   */
+  public static Path of(Path path, String suffix) {
+    return new Path(path.getParent(), "." + kind(suffix) + path.getName() + suffix);
+  }
+
+  /**
+   * @return the name of the data file the file named is the sidecar of, or
+   * null if it isn't a sidecar with this suffix
+   */
+  public static String dataFileName(String name, String suffix) {
+    String kind = "." + kind(suffix);
+    if(!name.startsWith(kind) || !name.endsWith(suffix) || name.length() <= kind.length() + suffix.length())
+      return null;
+    return name.substring(kind.length(), name.length() - suffix.length());
+  }
+
+  private static String kind(String suffix) {
+    return "(" + suffix.substring(1) + ")";
+  }
+
+  /**
+   * @return where the file Hive is writing to path will be once its task is
+   * done; path itself if it isn't one of Hive's temporary files
+   */
+  public static Path committed(Path path) {
+    URI uri = path.toUri();
+    String p = uri.getPath();
+    int name = p.lastIndexOf('/') + 1;
+    if(!p.startsWith(TEMP_PREFIX, name)) return path;
+
+    String committed = p.substring(0, name) + p.substring(name + TEMP_PREFIX.length());
+    // Any partitions' directories in the task's temporary one come along as they are.
+    int taskDir = p.lastIndexOf("/" + TASK_TEMP_PREFIX, name - 1);
+    if(taskDir >= 0)
+      committed = committed.substring(0, taskDir + 1) + TEMP_PREFIX
+          + committed.substring(taskDir + 1 + TASK_TEMP_PREFIX.length());
+    return new Path(uri.getScheme(), uri.getAuthority(), committed);
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.avro.Schema;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.ql.plan.MapWork;
+import org.apache.hadoop.hive.ql.plan.PartitionDesc;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The table-level properties of every table a task's plan reads, by table
+ * name, along with the schema each gives.  Hive initializes a serde for each
+ * operator, partition and table, and each needs its table's properties, so
+ * they're indexed once per plan rather than searched for every time.
+ */
+class TableIndex {
+  // Tasks run one plan at a time, so only the latest plan's index is kept.
+  private static TableIndex latest = null;
+
+  private final MapWork mapWork;
+  private final Properties only; // If the plan reads just one partition
+  private final Map<String, Properties> byName = new HashMap<String, Properties>();
+  // Schemas determined so far, keyed by the indexed properties they came from
+  private final Map<Properties, Schema> schemas = new IdentityHashMap<Properties, Schema>();
+
+  private TableIndex(MapWork mapWork) {
+    this.mapWork = mapWork;
+    Collection<PartitionDesc> partitions = mapWork.getAliasToPartnInfo().values();
+    this.only = partitions.size() == 1 ? partitions.iterator().next().getTableDesc().getProperties() : null;
+
+    for(PartitionDesc partition : partitions) {
+      Properties p = partition.getTableDesc().getProperties();
+      String name = p.getProperty("name");
+      if(name != null && !byName.containsKey(name))
+        byName.put(name, p);
+      schemas.put(p, null);
+    }
+  }
+
+  /**
+   * @return the index for this plan, building it if the plan is new
+   */
+  public static synchronized TableIndex forPlan(MapWork mapWork) {
+    if(latest == null || latest.mapWork != mapWork)
+      latest = new TableIndex(mapWork);
+    return latest;
+  }
+
+  /**
+   * @return the properties of the named table, or of the plan's only
+   * partition, whatever it's named; null if it's not in the plan
+   */
+  public Properties getTableProperties(String tableName) {
+    if(only != null) return only;
+    return byName.get(tableName);
+  }
+
+  /**
+   * @return the schema given by these properties, determined only once for
+   * properties from this index
+   */
+  public Schema getSchema(Configuration conf, Properties properties) {
+    synchronized(schemas) {
+      Schema schema = schemas.get(properties);
+      if(schema != null) return schema;
+    }
+
+    Schema schema = HaivvreoUtils.determineSchemaOrReturnErrorSchema(conf, properties);
+    // Failures may be passing, so are left to be tried again.
+    if(!schema.equals(SchemaResolutionProblem.SIGNAL_BAD_SCHEMA)) {
+      synchronized(schemas) {
+        if(schemas.containsKey(properties))
+          schemas.put(properties, schema);
+      }
+    }
+    return schema;
+  }
+}
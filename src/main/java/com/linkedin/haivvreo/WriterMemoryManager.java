@@ -0,0 +1,173 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the block buffers of every AvroContainerWriter open in the JVM
+ * within a budget.  A task writing to many partitions at once can have
+ * hundreds of writers open, each holding a partly filled block; once their
+ * buffers together go over the budget, the largest are finished early.
+ *
+ * Writers only hold a buffer while they have records to write.  Once a block
+ * is written its buffer goes back to a pool shared between the writers, for
+ * whichever of them next needs one.
+ */
+class WriterMemoryManager {
+  private static final Log LOG = LogFactory.getLog(WriterMemoryManager.class);
+
+  // Once over budget, flush writers until this fraction of it is in use.
+  static final double LOW_WATER = 0.75;
+  // Fraction of the budget that may sit idle in the pool.
+  static final double POOL_FRACTION = 0.125;
+
+  private static final WriterMemoryManager instance = new WriterMemoryManager(Runtime.getRuntime().maxMemory() / 4);
+
+  private volatile long budget;
+  private final AtomicLong used = new AtomicLong();
+  private final Set<AvroContainerWriter> writers =
+      Collections.newSetFromMap(new ConcurrentHashMap<AvroContainerWriter, Boolean>());
+
+  // Guarded by its own lock, not the manager's, as buffers are returned by
+  // writers' background threads while the manager may be waiting on them.
+  private final LinkedList<byte[]> pool = new LinkedList<byte[]>();
+  private long pooledBytes = 0;
+
+  WriterMemoryManager(long budget) {
+    setBudget(budget);
+  }
+
+  /**
+   * @return the manager shared by every writer in the JVM
+   */
+  public static WriterMemoryManager get() {
+    return instance;
+  }
+
+  public void setBudget(long budget) {
+    if(budget < 1)
+      throw new IllegalArgumentException("Invalid writer memory budget: " + budget);
+    this.budget = budget;
+  }
+
+  public long getBudget() {
+    return budget;
+  }
+
+  /**
+   * @return bytes held in block buffers by all writers
+   */
+  public long getUsed() {
+    return used.get();
+  }
+
+  void register(AvroContainerWriter writer) {
+    writers.add(writer);
+  }
+
+  void unregister(AvroContainerWriter writer) {
+    writers.remove(writer);
+  }
+
+  /**
+   * Count a change in the buffer memory a writer holds, finishing writers'
+   * blocks early if that takes the total over budget.
+   */
+  void adjust(AvroContainerWriter writer, long delta) {
+    writer.heldBytes.addAndGet(delta);
+    if(used.addAndGet(delta) > budget && delta > 0)
+      relieve();
+  }
+
+  /**
+   * Finish the blocks of the writers holding the most memory until enough
+   * will have been freed.  Writers can only be flushed from the thread
+   * appending to them; any others are asked to flush on their next append.
+   */
+  private synchronized void relieve() {
+    long target = (long) (budget * LOW_WATER);
+    long expected = used.get();
+    if(expected <= budget) return; // Someone else got here first
+
+    List<AvroContainerWriter> largest = new ArrayList<AvroContainerWriter>(writers);
+    Collections.sort(largest, new Comparator<AvroContainerWriter>() {
+      @Override
+      public int compare(AvroContainerWriter w1, AvroContainerWriter w2) {
+        long h1 = w1.heldBytes.get();
+        long h2 = w2.heldBytes.get();
+        return h1 > h2 ? -1 : (h1 == h2 ? 0 : 1);
+      }
+    });
+
+    int flushed = 0;
+    for(Iterator<AvroContainerWriter> it = largest.iterator(); it.hasNext() && expected > target; ) {
+      AvroContainerWriter writer = it.next();
+      long held = writer.heldBytes.get();
+      if(held <= 0) break;
+      try {
+        writer.flushForMemory();
+      } catch (Exception e) {
+        LOG.warn("Unable to flush writer to free memory", e);
+        continue;
+      }
+      expected -= held;
+      flushed++;
+    }
+    if(LOG.isDebugEnabled())
+      LOG.debug("Over writer memory budget of " + budget + " bytes; flushed " + flushed + " of " + largest.size() + " writers");
+  }
+
+  /**
+   * @return a buffer of at least size bytes, from the pool if one is there
+   */
+  byte[] takeBuffer(int size) {
+    synchronized(pool) {
+      for(Iterator<byte[]> it = pool.iterator(); it.hasNext(); ) {
+        byte[] buffer = it.next();
+        if(buffer.length >= size) {
+          it.remove();
+          pooledBytes -= buffer.length;
+          return buffer;
+        }
+      }
+    }
+    return new byte[size];
+  }
+
+  /**
+   * Give back a buffer no longer in use, to be kept for another writer if
+   * the pool has room.
+   */
+  void returnBuffer(byte[] buffer) {
+    synchronized(pool) {
+      if(buffer.length == 0 || pooledBytes + buffer.length > budget * POOL_FRACTION) return;
+      pool.addFirst(buffer);
+      pooledBytes += buffer.length;
+    }
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestAvroCompactor {
+  private static final Schema v1 = Schema.parse("{\n" +
+      "    \"namespace\": \"com.linkedin.haivvreo\",\n" +
+      "    \"name\": \"compactor_test\",\n" +
+      "    \"type\": \"record\",\n" +
+      "    \"fields\": [\n" +
+      "        { \"name\":\"id\", \"type\":\"int\" }\n" +
+      "    ]\n" +
+      "}");
+  private static final Schema v2 = Schema.parse("{\n" +
+      "    \"namespace\": \"com.linkedin.haivvreo\",\n" +
+      "    \"name\": \"compactor_test\",\n" +
+      "    \"type\": \"record\",\n" +
+      "    \"fields\": [\n" +
+      "        { \"name\":\"id\", \"type\":\"int\" },\n" +
+      "        { \"name\":\"note\", \"type\":[\"null\", \"string\"], \"default\":null }\n" +
+      "    ]\n" +
+      "}");
+
+  private static final int FILES = 6;
+  private static final int RECORDS_PER_FILE = 100;
+
+  private File dir;
+  private File in;
+  private File out;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = File.createTempFile("compactor", "");
+    dir.delete();
+    in = new File(dir, "in");
+    out = new File(dir, "out");
+    assertTrue(in.mkdirs());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtil.fullyDelete(dir);
+  }
+
+  private void writeFile(String name, Schema schema, CodecFactory codec, int firstId) throws IOException {
+    DataFileWriter<GenericRecord> dfw = new DataFileWriter<GenericRecord>(new GenericDatumWriter<GenericRecord>(schema));
+    dfw.setCodec(codec);
+    dfw.create(schema, new File(in, name));
+    for(int i = 0; i < RECORDS_PER_FILE; i++) {
+      GenericRecord r = new GenericData.Record(schema);
+      r.put("id", firstId + i);
+      if(schema.getField("note") != null) r.put("note", "note " + i);
+      dfw.append(r);
+    }
+    dfw.close();
+  }
+
+  // Ids read from the compacted files, each mapped to the schema it was read with
+  private Map<Integer, Schema> readCompacted() throws IOException {
+    Map<Integer, Schema> ids = new HashMap<Integer, Schema>();
+    for(File f : out.listFiles()) {
+      if(f.getName().startsWith(".")) continue; // Local file system checksums
+      DataFileReader<GenericRecord> dfr = new DataFileReader<GenericRecord>(f, new GenericDatumReader<GenericRecord>());
+      try {
+        for(GenericRecord r : dfr)
+          assertNull(ids.put((Integer) r.get("id"), dfr.getSchema()));
+      } finally {
+        dfr.close();
+      }
+    }
+    return ids;
+  }
+
+  @Test
+  public void filesAreCompactedBySchemaKeepingEveryRecord() throws IOException {
+    for(int i = 0; i < FILES; i++)
+      writeFile("file" + i + ".avro", i % 3 == 0 ? v2 : v1,
+          i % 2 == 0 ? CodecFactory.deflateCodec(6) : CodecFactory.nullCodec(), i * RECORDS_PER_FILE);
+    new File(in, "_SUCCESS").createNewFile();
+
+    int written = new AvroCompactor(new Configuration()).compact(new Path(in.toURI()), new Path(out.toURI()));
+    assertEquals(2, written);
+
+    Map<Integer, Schema> ids = readCompacted();
+    assertEquals(FILES * RECORDS_PER_FILE, ids.size());
+    for(int i = 0; i < FILES; i++)
+      assertEquals(i % 3 == 0 ? v2 : v1, ids.get(i * RECORDS_PER_FILE));
+  }
+
+  @Test
+  public void recordsAreResolvedToTheTargetSchema() throws IOException {
+    for(int i = 0; i < FILES; i++)
+      writeFile("file" + i + ".avro", i % 3 == 0 ? v2 : v1, CodecFactory.deflateCodec(6), i * RECORDS_PER_FILE);
+
+    AvroCompactor compactor = new AvroCompactor(new Configuration()).setTargetSchema(v2);
+    assertEquals(1, compactor.compact(new Path(in.toURI()), new Path(out.toURI())));
+
+    Map<Integer, Schema> ids = readCompacted();
+    assertEquals(FILES * RECORDS_PER_FILE, ids.size());
+    for(Schema s : ids.values())
+      assertEquals(v2, s);
+  }
+
+  @Test
+  public void compactedFilesAreSplitOnceTheyReachTheMaximumSize() throws IOException {
+    for(int i = 0; i < FILES; i++)
+      writeFile("file" + i + ".avro", v1, CodecFactory.nullCodec(), i * RECORDS_PER_FILE);
+
+    long inputSize = new File(in, "file0.avro").length();
+    AvroCompactor compactor = new AvroCompactor(new Configuration()).setMaxFileSize(2 * inputSize);
+    int written = compactor.compact(new Path(in.toURI()), new Path(out.toURI()));
+    assertTrue("Expected several compacted files but got " + written, written > 1 && written < FILES);
+    assertEquals(FILES * RECORDS_PER_FILE, readCompacted().size());
+  }
+}
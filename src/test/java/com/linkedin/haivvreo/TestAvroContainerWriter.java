@@ -0,0 +1,432 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.ql.exec.FileSinkOperator;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestAvroContainerWriter {
+  private static final Schema schema = Schema.parse("{\n" +
+      "    \"namespace\": \"com.linkedin.haivvreo\",\n" +
+      "    \"name\": \"writer_test\",\n" +
+      "    \"type\": \"record\",\n" +
+      "    \"fields\": [\n" +
+      "        { \"name\":\"id\", \"type\":\"int\" },\n" +
+      "        { \"name\":\"name\", \"type\":\"string\" }\n" +
+      "    ]\n" +
+      "}");
+
+  static final int RECORD_COUNT = 5000;
+
+  static GenericRecord record(int i) {
+    GenericRecord r = new GenericData.Record(schema);
+    r.put("id", i);
+    r.put("name", "record number " + i);
+    return r;
+  }
+
+  static byte[] writeRecords(AvroContainerWriter acw) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    acw.create(baos);
+    for(int i = 0; i < RECORD_COUNT; i++)
+      acw.append(record(i));
+    acw.close();
+    return baos.toByteArray();
+  }
+
+  static void verifyRecords(byte[] file, String expectedCodec) throws IOException {
+    DataFileStream<GenericRecord> dfs =
+        new DataFileStream<GenericRecord>(new ByteArrayInputStream(file), new GenericDatumReader<GenericRecord>());
+    assertEquals(schema, dfs.getSchema());
+    assertEquals(expectedCodec, dfs.getMetaString("avro.codec"));
+
+    int i = 0;
+    while(dfs.hasNext()) {
+      GenericRecord r = dfs.next();
+      assertEquals(i, r.get("id"));
+      assertEquals("record number " + i, r.get("name").toString());
+      i++;
+    }
+    assertEquals(RECORD_COUNT, i);
+    dfs.close();
+  }
+
+  @Test
+  public void writesReadableContainerFiles() throws IOException {
+    verifyRecords(writeRecords(new AvroContainerWriter(schema).setSyncInterval(1024)), "null");
+    verifyRecords(writeRecords(new AvroContainerWriter(schema).setSyncInterval(1024)
+        .setCodec(CodecFactory.deflateCodec(6))), "deflate");
+  }
+
+  @Test
+  public void pipelinedWritesProduceTheSameRecords() throws IOException {
+    verifyRecords(writeRecords(new AvroContainerWriter(schema).setSyncInterval(1024)
+        .setCodec(CodecFactory.deflateCodec(6)).setPipelined(2)), "deflate");
+    verifyRecords(writeRecords(new AvroContainerWriter(schema).setSyncInterval(1024)
+        .setPipelined(1)), "null");
+  }
+
+  @Test
+  public void parallelCompressionWritesBlocksInOrder() throws IOException {
+    verifyRecords(writeRecords(new AvroContainerWriter(schema).setSyncInterval(512)
+        .setCodec(CodecFactory.deflateCodec(9)).setCompressionThreads(4)), "deflate");
+    verifyRecords(writeRecords(new AvroContainerWriter(schema).setSyncInterval(512)
+        .setCodec(CodecFactory.deflateCodec(1)).setPipelined(8).setCompressionThreads(3)), "deflate");
+  }
+
+  // Record count of each block in the file
+  static List<Long> blockCounts(byte[] file) throws IOException {
+    DataFileStream<GenericRecord> dfs =
+        new DataFileStream<GenericRecord>(new ByteArrayInputStream(file), new GenericDatumReader<GenericRecord>());
+    List<Long> counts = new ArrayList<Long>();
+    while(dfs.hasNext()) {
+      dfs.nextBlock();
+      counts.add(dfs.getBlockCount());
+    }
+    dfs.close();
+    return counts;
+  }
+
+  @Test
+  public void blocksAreLimitedInRecords() throws IOException {
+    byte[] file = writeRecords(new AvroContainerWriter(schema).setMaxBlockRecords(300));
+    verifyRecords(file, "null");
+
+    List<Long> counts = blockCounts(file);
+    assertEquals((RECORD_COUNT + 299) / 300, counts.size());
+    for(int i = 0; i < counts.size() - 1; i++)
+      assertEquals(300L, (long) counts.get(i));
+  }
+
+  @Test
+  public void blocksAreSizedByCompressedTarget() throws IOException {
+    int target = 2048;
+    byte[] file = writeRecords(new AvroContainerWriter(schema)
+        .setCodec(CodecFactory.deflateCodec(6)).setTargetBlockSize(target));
+    verifyRecords(file, "deflate");
+
+    // These records compress well, so blocks sized by the uncompressed
+    // target would be far smaller on disk than the target.
+    int blocks = blockCounts(file).size();
+    int expected = file.length / target;
+    assertTrue("Expected about " + expected + " blocks, got " + blocks,
+        blocks >= expected / 2 && blocks <= expected * 2);
+  }
+
+  @Test
+  public void codecSelectorWeighsSizeAgainstSpeed() {
+    List<ByteBuffer> samples = new ArrayList<ByteBuffer>();
+    StringBuilder sb = new StringBuilder();
+    for(int i = 0; i < 5000; i++)
+      sb.append("record number ").append(i);
+    samples.add(ByteBuffer.wrap(sb.toString().getBytes()));
+
+    List<CodecFactory> candidates = Arrays.asList(CodecFactory.nullCodec(), CodecFactory.deflateCodec(6));
+    assertEquals("deflate-6", new CodecSelector(candidates, 0).choose(samples).toString());
+    assertEquals("null", new CodecSelector(candidates, 1).choose(samples).toString());
+  }
+
+  @Test
+  public void codecObjectivesAreParsed() {
+    assertEquals(0.0, CodecSelector.parseObjective("size"), 0);
+    assertEquals(1.0, CodecSelector.parseObjective(" Speed "), 0);
+    assertEquals(0.5, CodecSelector.parseObjective("balanced"), 0);
+    assertEquals(0.25, CodecSelector.parseObjective("0.25"), 0);
+    for(String bad : new String[] {"fast", "1.5", "-1"}) {
+      try {
+        CodecSelector.parseObjective(bad);
+        fail("Should not accept objective " + bad);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void chosenCodecIsUsedAndRecorded() throws IOException {
+    CodecSelector selector = new CodecSelector(CodecSelector.defaultCandidates(), 0.5);
+    // Enough records to fill the sample, and too few to.
+    for(int maxRecords : new int[] {100, RECORD_COUNT * 2}) {
+      byte[] file = writeRecords(new AvroContainerWriter(schema).setMaxBlockRecords(maxRecords)
+          .setCodecSelector(selector, 3).setPipelined(2));
+      DataFileStream<GenericRecord> dfs =
+          new DataFileStream<GenericRecord>(new ByteArrayInputStream(file), new GenericDatumReader<GenericRecord>());
+      String chosen = dfs.getMetaString(AvroContainerWriter.CHOSEN_CODEC);
+      assertTrue(chosen.startsWith(dfs.getMetaString("avro.codec")));
+      dfs.close();
+      verifyRecords(file, dfs.getMetaString("avro.codec"));
+    }
+  }
+
+  private static List<Integer> readIds(byte[] file) throws IOException {
+    DataFileStream<GenericRecord> dfs =
+        new DataFileStream<GenericRecord>(new ByteArrayInputStream(file), new GenericDatumReader<GenericRecord>());
+    List<Integer> ids = new ArrayList<Integer>();
+    while(dfs.hasNext())
+      ids.add((Integer) dfs.next().get("id"));
+    dfs.close();
+    return ids;
+  }
+
+  @Test
+  public void manyWritersStayWithinTheirMemoryBudget() throws IOException {
+    int budget = 64 * 1024;
+    WriterMemoryManager memory = new WriterMemoryManager(budget);
+    int writerCount = 50;
+    List<ByteArrayOutputStream> files = new ArrayList<ByteArrayOutputStream>();
+    List<AvroContainerWriter> writers = new ArrayList<AvroContainerWriter>();
+    for(int i = 0; i < writerCount; i++) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      files.add(baos);
+      // Unmanaged, 50 writers would hold 50 blocks of up to 16k each
+      writers.add(new AvroContainerWriter(schema).setSyncInterval(16 * 1024).setMemoryManager(memory).create(baos));
+    }
+
+    long maxUsed = 0;
+    for(int i = 0; i < RECORD_COUNT * 4; i++) {
+      writers.get(i % writerCount).append(record(i));
+      maxUsed = Math.max(maxUsed, memory.getUsed());
+    }
+    // Over by no more than the buffer that took it over
+    assertTrue("Used " + maxUsed + " bytes", maxUsed <= budget + 16 * 1024 * 5 / 4);
+
+    for(AvroContainerWriter writer : writers)
+      writer.close();
+    assertEquals(0, memory.getUsed());
+
+    for(int w = 0; w < writerCount; w++) {
+      List<Integer> ids = readIds(files.get(w).toByteArray());
+      assertEquals(RECORD_COUNT * 4 / writerCount, ids.size());
+      for(int i = 0; i < ids.size(); i++)
+        assertEquals(w + i * writerCount, (int) ids.get(i));
+    }
+  }
+
+  @Test
+  public void userMetadataIsWritten() throws IOException {
+    byte[] file = writeRecords(new AvroContainerWriter(schema).setMeta("haivvreo.test", "some value"));
+    DataFileStream<GenericRecord> dfs =
+        new DataFileStream<GenericRecord>(new ByteArrayInputStream(file), new GenericDatumReader<GenericRecord>());
+    assertEquals("some value", dfs.getMetaString("haivvreo.test"));
+    dfs.close();
+  }
+
+  // Accepts the header and then fails
+  private static class FailingOutputStream extends OutputStream {
+    private int remaining = 2048;
+
+    @Override
+    public void write(int b) throws IOException {
+      if(remaining-- <= 0) throw new IOException("Disk full");
+    }
+  }
+
+  private static void assertCausedByDiskFull(Throwable t) {
+    while(t != null && !"Disk full".equals(t.getMessage()))
+      t = t.getCause();
+    assertTrue("Should have been caused by the failing stream", t != null);
+  }
+
+  @Test
+  public void backgroundFailuresAreReportedToTheTask() throws IOException {
+    AvroContainerWriter acw = new AvroContainerWriter(schema).setSyncInterval(1024).setPipelined(2);
+    acw.create(new FailingOutputStream());
+
+    try {
+      for(int i = 0; i < RECORD_COUNT; i++)
+        acw.append(record(i));
+      acw.close();
+      fail("Failure to write a block should have been reported");
+    } catch (IOException e) {
+      assertCausedByDiskFull(e);
+    }
+  }
+
+  @Test
+  public void parallelCompressionFailuresAreReportedToTheTask() throws IOException {
+    AvroContainerWriter acw = new AvroContainerWriter(schema).setSyncInterval(512)
+        .setCodec(CodecFactory.deflateCodec(6)).setCompressionThreads(4);
+    acw.create(new FailingOutputStream());
+    try {
+      for(int i = 0; i < RECORD_COUNT; i++)
+        acw.append(record(i));
+      acw.close();
+      fail("Failure to write a block should have been reported");
+    } catch (IOException e) {
+      assertCausedByDiskFull(e);
+    }
+  }
+
+  @Test
+  public void recordsThatFailToEncodeLeaveNothingBehind() throws IOException {
+    AvroContainerWriter acw = new AvroContainerWriter(schema).setSyncInterval(1024);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    acw.create(baos);
+    GenericRecord incomplete = new GenericData.Record(schema);
+    incomplete.put("id", 42); // Encoded before the missing name is found
+    try {
+      acw.append(incomplete);
+      fail("A record missing a field should not have been written");
+    } catch (RuntimeException e) {
+      // expected
+    }
+    for(int i = 0; i < RECORD_COUNT; i++)
+      acw.append(record(i));
+    acw.close();
+    verifyRecords(baos.toByteArray(), "null");
+  }
+
+  private static Set<Thread> blockWriterThreads() {
+    Set<Thread> threads = new HashSet<Thread>();
+    for(Thread t : Thread.getAllStackTraces().keySet())
+      if(t.getName().equals("haivvreo-block-writer") && t.isAlive()) threads.add(t);
+    return threads;
+  }
+
+  @Test(timeout = 30000)
+  public void deadWriterThreadsAreReportedRatherThanWaitedOn() throws Exception {
+    Set<Thread> before = blockWriterThreads();
+    AvroContainerWriter acw = new AvroContainerWriter(schema).setSyncInterval(1024).setPipelined(2);
+    acw.create(new ByteArrayOutputStream());
+    Set<Thread> started = blockWriterThreads();
+    started.removeAll(before);
+    assertEquals(1, started.size());
+    Thread writer = started.iterator().next();
+    writer.interrupt();
+    writer.join();
+
+    try {
+      for(int i = 0; i < RECORD_COUNT; i++)
+        acw.append(record(i));
+      acw.close();
+      fail("The writer thread's death should have been reported");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof InterruptedException);
+    }
+  }
+
+  @Test
+  public void writersCannotBeChangedOnceCreated() throws IOException {
+    AvroContainerWriter acw = new AvroContainerWriter(schema);
+    acw.create(new ByteArrayOutputStream());
+    try {
+      acw.setSyncInterval(2048);
+      fail("Should not be able to change an open writer");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    acw.close();
+  }
+
+  @Test
+  public void malformedSettingsFallBackToTheirDefaults() throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty(HaivvreoUtils.SCHEMA_LITERAL, schema.toString());
+    properties.setProperty(AvroContainerOutputFormat.CODEC, "deflate");
+    properties.setProperty(AvroContainerOutputFormat.DEFLATE_LEVEL, "eleven");
+    properties.setProperty(AvroContainerOutputFormat.PIPELINED_WRITES, "true");
+    properties.setProperty(AvroContainerOutputFormat.MAX_IN_FLIGHT_BLOCKS, "-1");
+    properties.setProperty(AvroContainerOutputFormat.COMPRESSION_THREADS, "lots");
+    properties.setProperty(AvroContainerOutputFormat.TARGET_BLOCK_SIZE, "64k");
+    properties.setProperty(AvroContainerOutputFormat.MAX_BLOCK_RECORDS, "0");
+    properties.setProperty(AvroContainerOutputFormat.BLOOM_COLUMNS, "id");
+    properties.setProperty(AvroContainerOutputFormat.BLOOM_FPP, "1%");
+    properties.setProperty(AvroContainerOutputFormat.BLOOM_MAX_ENTRIES, "many");
+
+    File dir = File.createTempFile("settings", "");
+    dir.delete();
+    assertTrue(dir.mkdirs());
+    try {
+      File file = new File(dir, "000000_0");
+      FileSinkOperator.RecordWriter writer = new AvroContainerOutputFormat().getHiveRecordWriter(new JobConf(),
+          new Path(file.getPath()), AvroGenericRecordWritable.class, true, properties, null);
+      for(int i = 0; i < RECORD_COUNT; i++)
+        writer.write(new AvroGenericRecordWritable(record(i)));
+      writer.close(false);
+
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      FileInputStream in = new FileInputStream(file);
+      try {
+        byte[] buffer = new byte[4096];
+        for(int n; (n = in.read(buffer)) > 0; )
+          baos.write(buffer, 0, n);
+      } finally {
+        in.close();
+      }
+      verifyRecords(baos.toByteArray(), "deflate");
+      assertTrue(new File(dir, ColumnBloomFilter.sidecarPath(new Path("000000_0")).getName()).exists());
+    } finally {
+      FileUtil.fullyDelete(dir);
+    }
+  }
+
+  @Test
+  public void memoryBudgetIsOnlyTakenFromTheJob() throws IOException {
+    WriterMemoryManager memory = WriterMemoryManager.get();
+    long original = memory.getBudget();
+    File dir = File.createTempFile("budget", "");
+    dir.delete();
+    assertTrue(dir.mkdirs());
+    try {
+      JobConf job = new JobConf();
+      job.set(AvroContainerOutputFormat.MEMORY_BUDGET, "1000000");
+      Properties properties = new Properties();
+      properties.setProperty(HaivvreoUtils.SCHEMA_LITERAL, schema.toString());
+      FileSinkOperator.RecordWriter first = new AvroContainerOutputFormat().getHiveRecordWriter(job,
+          new Path(dir.getPath(), "first"), AvroGenericRecordWritable.class, false, properties, null);
+      assertEquals(1000000, memory.getBudget());
+
+      // Another table's writer opening can't change the budget of the first's.
+      properties.setProperty(AvroContainerOutputFormat.MEMORY_BUDGET, "1000");
+      FileSinkOperator.RecordWriter second = new AvroContainerOutputFormat().getHiveRecordWriter(job,
+          new Path(dir.getPath(), "second"), AvroGenericRecordWritable.class, false, properties, null);
+      assertEquals(1000000, memory.getBudget());
+
+      first.close(false);
+      second.close(false);
+    } finally {
+      memory.setBudget(original);
+      FileUtil.fullyDelete(dir);
+    }
+  }
+}
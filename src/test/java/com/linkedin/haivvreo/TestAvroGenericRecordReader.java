@@ -0,0 +1,110 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestAvroGenericRecordReader {
+  private static final Schema schema = Schema.parse("{\n" +
+      "    \"namespace\": \"com.linkedin.haivvreo\",\n" +
+      "    \"name\": \"reader_test\",\n" +
+      "    \"type\": \"record\",\n" +
+      "    \"fields\": [\n" +
+      "        { \"name\":\"id\", \"type\":\"int\" },\n" +
+      "        { \"name\":\"name\", \"type\":\"string\" },\n" +
+      "        { \"name\":\"tags\", \"type\":{\"type\":\"array\", \"items\":\"string\"} }\n" +
+      "    ]\n" +
+      "}");
+
+  static final int RECORD_COUNT = 1000;
+
+  // Small sync interval so the file has plenty of blocks to split between.
+  static File writeTestFile() throws IOException {
+    File f = File.createTempFile("haivvreo-reader", ".avro");
+    f.deleteOnExit();
+    DataFileWriter<GenericRecord> dfw = new DataFileWriter<GenericRecord>(new GenericDatumWriter<GenericRecord>(schema));
+    dfw.setSyncInterval(1024);
+    dfw.create(schema, f);
+    for(int i = 0; i < RECORD_COUNT; i++) {
+      GenericRecord r = new GenericData.Record(schema);
+      r.put("id", i);
+      r.put("name", "record " + i);
+      List<String> tags = new ArrayList<String>();
+      for(int j = 0; j < i % 5; j++) tags.add("tag" + j);
+      r.put("tags", tags);
+      dfw.append(r);
+    }
+    dfw.close();
+    return f;
+  }
+
+  private List<Integer> readIds(File f, boolean lazy, long start, long length) throws IOException {
+    JobConf job = new JobConf();
+    job.setBoolean(AvroGenericRecordReader.LAZY_DECODE, lazy);
+    FileSplit split = new FileSplit(new Path(f.toURI()), start, length, (String[]) null);
+    AvroGenericRecordReader reader = new AvroGenericRecordReader(job, split, null);
+
+    List<Integer> ids = new ArrayList<Integer>();
+    AvroGenericRecordWritable value = reader.createValue();
+    while(reader.next(NullWritable.get(), value)) {
+      GenericRecord r = value.getRecord();
+      assertEquals("record " + r.get("id"), r.get("name").toString());
+      assertEquals((Integer) r.get("id") % 5, ((List) r.get("tags")).size());
+      ids.add((Integer) r.get("id"));
+    }
+    reader.close();
+    return ids;
+  }
+
+  @Test
+  public void lazyAndEagerReadsReturnTheSameRecords() throws IOException {
+    File f = writeTestFile();
+    List<Integer> eager = readIds(f, false, 0, f.length());
+    List<Integer> lazy = readIds(f, true, 0, f.length());
+
+    assertEquals(RECORD_COUNT, eager.size());
+    assertEquals(eager, lazy);
+  }
+
+  @Test
+  public void lazyReadsRespectSplitBoundaries() throws IOException {
+    File f = writeTestFile();
+    long middle = f.length() / 2;
+    for(boolean lazy : new boolean[] {false, true}) {
+      List<Integer> ids = readIds(f, lazy, 0, middle);
+      ids.addAll(readIds(f, lazy, middle, f.length() - middle));
+
+      assertEquals(RECORD_COUNT, ids.size());
+      for(int i = 0; i < RECORD_COUNT; i++) assertEquals(i, (int) ids.get(i));
+    }
+  }
+}
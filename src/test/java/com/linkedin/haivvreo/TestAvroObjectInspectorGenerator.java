@@ -480,4 +480,12 @@ public class TestAvroObjectInspectorGenerator {
     // For once we actually want reference equality in Java.
     assertTrue(aoig.getObjectInspector() == aoig2.getObjectInspector());
   }
+
+  @Test
+  public void generatorsAreSharedBetweenEqualSchemas() throws SerDeException {
+    AvroObjectInspectorGenerator aoig = AvroObjectInspectorGenerator.forSchema(Schema.parse(RECORD_SCHEMA));
+    assertSame(aoig, AvroObjectInspectorGenerator.forSchema(Schema.parse(RECORD_SCHEMA)));
+    assertNotSame(aoig, AvroObjectInspectorGenerator.forSchema(Schema.parse(UNION_SCHEMA)));
+    assertEquals(new AvroObjectInspectorGenerator(Schema.parse(RECORD_SCHEMA)).getColumnTypes(), aoig.getColumnTypes());
+  }
 }
@@ -16,6 +16,13 @@
 package com.linkedin.haivvreo;
 
 import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hive.serde2.SerDeException;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
@@ -25,7 +32,15 @@ import org.apache.hadoop.io.Writable;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import static com.linkedin.haivvreo.AvroSerDe.HAIVVREO_SCHEMA;
@@ -160,4 +175,166 @@ public class TestAvroSerde {
     AvroSerDe asd = new AvroSerDe();
     assertEquals(AvroGenericRecordWritable.class, asd.getSerializedClass());
   }
+
+  private AvroSerDe serDe(String schema, boolean passThrough) throws SerDeException {
+    Properties props = new Properties();
+    props.put(SCHEMA_LITERAL, schema);
+    props.put(AvroSerDe.PASS_THROUGH, Boolean.toString(passThrough));
+    AvroSerDe asd = new AvroSerDe();
+    asd.initialize(new Configuration(), props);
+    return asd;
+  }
+
+  private AvroGenericRecordWritable readRecord(String text) throws IOException {
+    GenericData.Record record = new GenericData.Record(originalSchema);
+    record.put("text", text);
+    return Utils.serializeAndDeserializeRecord(record);
+  }
+
+  @Test
+  public void unchangedRowsPassThroughAsTheirRecords() throws SerDeException, IOException {
+    AvroSerDe in = serDe(originalSchemaString, true);
+    AvroSerDe out = serDe(originalSchemaString, true);
+
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    AvroContainerWriter acw = new AvroContainerWriter(originalSchema);
+    acw.create(file);
+    AvroGenericRecordWriter writer = new AvroGenericRecordWriter(acw);
+    for(int i = 0; i < 3; i++) {
+      AvroGenericRecordWritable read = readRecord("row " + i);
+      Object row = in.deserialize(read);
+      AvroGenericRecordWritable written = (AvroGenericRecordWritable) out.serialize(row, in.getObjectInspector());
+      assertSame(read.getRecord(), written.getRecord());
+      assertNotNull(written.getEncodedRecord());
+      writer.write(written);
+    }
+    writer.close(false);
+
+    DataFileStream<GenericRecord> dfs = new DataFileStream<GenericRecord>(
+        new ByteArrayInputStream(file.toByteArray()), new GenericDatumReader<GenericRecord>());
+    for(int i = 0; i < 3; i++)
+      assertEquals("row " + i, dfs.next().get("text").toString());
+    assertFalse(dfs.hasNext());
+  }
+
+  @Test
+  public void rowsReadLazilyFromFilesOfAnEqualSchemaPassThrough() throws SerDeException, IOException {
+    AvroSerDe in = serDe(originalSchemaString, true);
+    AvroSerDe out = serDe(originalSchemaString, true);
+
+    // As the lazy record reader hands them out: the file's schema, parsed
+    // from its header, is equal to the table's but not the same instance.
+    Schema fileSchema = Schema.parse(originalSchemaString);
+    Schema tableSchema = SchemaInterner.parse(originalSchemaString);
+    assertNotSame(fileSchema, tableSchema);
+    GenericData.Record record = new GenericData.Record(fileSchema);
+    record.put("text", "a lazy row");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(bytes, null);
+    new GenericDatumWriter<GenericRecord>(fileSchema).write(record, encoder);
+    encoder.flush();
+    AvroGenericRecordWritable read = new AvroGenericRecordWritable();
+    read.setEncoded(fileSchema, tableSchema, bytes.toByteArray(), 0, bytes.size());
+
+    AvroGenericRecordWritable written = (AvroGenericRecordWritable) out.serialize(in.deserialize(read),
+        in.getObjectInspector());
+    ByteBuffer encoded = written.getEncodedRecord();
+    assertNotNull(encoded);
+    assertArrayEquals(bytes.toByteArray(), Arrays.copyOfRange(encoded.array(),
+        encoded.arrayOffset() + encoded.position(), encoded.arrayOffset() + encoded.limit()));
+  }
+
+  @Test
+  public void rowsArentPassedThroughUnlessAskedFor() throws SerDeException, IOException {
+    AvroSerDe in = serDe(originalSchemaString, true);
+    Properties props = new Properties();
+    props.put(SCHEMA_LITERAL, originalSchemaString);
+    AvroSerDe out = new AvroSerDe();
+    out.initialize(new Configuration(), props);
+
+    AvroGenericRecordWritable read = readRecord("a row");
+    AvroGenericRecordWritable written = (AvroGenericRecordWritable) out.serialize(in.deserialize(read),
+        in.getObjectInspector());
+    assertNotSame(read.getRecord(), written.getRecord());
+    assertNull(written.getEncodedRecord());
+  }
+
+  @Test
+  public void changedRowsOrSchemasAreConverted() throws SerDeException, IOException {
+    AvroSerDe in = serDe(originalSchemaString, true);
+    AvroGenericRecordWritable read = readRecord("a row");
+    List<?> row = (List<?>) in.deserialize(read);
+
+    // A copy of the row, as any operator changing it would make
+    AvroGenericRecordWritable written = (AvroGenericRecordWritable) serDe(originalSchemaString, true)
+        .serialize(new ArrayList<Object>(row), in.getObjectInspector());
+    assertNotSame(read.getRecord(), written.getRecord());
+    assertEquals(read.getRecord(), written.getRecord());
+    assertNull(written.getEncodedRecord());
+
+    // The same row, but for a table of a different schema
+    written = (AvroGenericRecordWritable) serDe(newSchemaString, true).serialize(row, in.getObjectInspector());
+    assertEquals(newSchema, written.getRecord().getSchema());
+    assertNull(written.getEncodedRecord());
+
+    // The same row, but with passing through turned off
+    written = (AvroGenericRecordWritable) serDe(originalSchemaString, false).serialize(row, in.getObjectInspector());
+    assertNotSame(read.getRecord(), written.getRecord());
+    assertNull(written.getEncodedRecord());
+  }
+
+  @Test
+  public void statsGiveTheRawSizeOfTheLastRow() throws SerDeException, IOException {
+    AvroSerDe in = serDe(originalSchemaString, true);
+    AvroSerDe out = serDe(originalSchemaString, false);
+    assertEquals(0, in.getSerDeStats().getRawDataSize());
+
+    // Rows read and rows written are sized alike
+    Object row = in.deserialize(readRecord("twelve bytes"));
+    assertEquals(12, in.getSerDeStats().getRawDataSize());
+    out.serialize(row, in.getObjectInspector());
+    assertEquals(12, out.getSerDeStats().getRawDataSize());
+
+    in.deserialize(readRecord("h\u00e9llo")); // Bytes, not characters
+    assertEquals(6, in.getSerDeStats().getRawDataSize());
+    Properties props = new Properties();
+    props.put(SCHEMA_LITERAL, originalSchemaString);
+    AvroSerDe copied = new AvroSerDe();
+    copied.initialize(new Configuration(), props);
+    copied.serialize(Arrays.<Object>asList("h\u00e9llo"), in.getObjectInspector());
+    assertEquals(6, copied.getSerDeStats().getRawDataSize());
+  }
+
+  @Test
+  public void rawSizesCountValuesAtTheirFullWidth() {
+    Schema schema = Schema.parse("{\"type\":\"record\", \"name\":\"sizes\", \"fields\":[" +
+        "{\"name\":\"i\", \"type\":\"int\"}," +
+        "{\"name\":\"l\", \"type\":\"long\"}," +
+        "{\"name\":\"d\", \"type\":\"double\"}," +
+        "{\"name\":\"b\", \"type\":\"boolean\"}," +
+        "{\"name\":\"s\", \"type\":[\"null\", \"string\"]}," +
+        "{\"name\":\"n\", \"type\":[\"null\", \"string\"]}," +
+        "{\"name\":\"a\", \"type\":{\"type\":\"array\", \"items\":\"int\"}}," +
+        "{\"name\":\"m\", \"type\":{\"type\":\"map\", \"values\":\"long\"}}," +
+        "{\"name\":\"f\", \"type\":{\"type\":\"fixed\", \"name\":\"three\", \"size\":3}}," +
+        "{\"name\":\"e\", \"type\":{\"type\":\"enum\", \"name\":\"suit\", \"symbols\":[\"SPADES\"]}}," +
+        "{\"name\":\"y\", \"type\":\"bytes\"}]}");
+    GenericData.Record r = new GenericData.Record(schema);
+    r.put("i", 1);
+    r.put("l", 1L);
+    r.put("d", 1.0);
+    r.put("b", true);
+    r.put("s", "f\u00f6r"); // Four bytes in UTF-8
+    r.put("n", null);
+    r.put("a", Arrays.asList(1, 2, 3));
+    Map<String, Long> m = new HashMap<String, Long>();
+    m.put("key", 1L);
+    r.put("m", m);
+    r.put("f", new GenericData.Fixed(schema.getField("f").schema(), new byte[3]));
+    r.put("e", new GenericData.EnumSymbol(schema.getField("e").schema(), "SPADES"));
+    r.put("y", ByteBuffer.wrap(new byte[5]));
+
+    // 4 + 8 + 8 + 1 + 4 + 0 + 3 * 4 + (3 + 8) + 3 + 6 + 5
+    assertEquals(62, RawDataSize.of(r, schema));
+  }
 }
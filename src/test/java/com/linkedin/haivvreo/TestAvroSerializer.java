@@ -211,4 +211,132 @@ public class TestAvroSerializer {
     assertArrayEquals(fixed.bytes(), ((GenericData.Fixed) r.get("fixed1")).bytes());
   }
 
+  private Writable serializeRow(AvroSerializer as, Schema s, Object... values) throws SerDeException {
+    AvroObjectInspectorGenerator aoig = new AvroObjectInspectorGenerator(s);
+    return as.serialize(Arrays.asList(values), aoig.getObjectInspector(), aoig.getColumnNames(), aoig.getColumnTypes(), s);
+  }
+
+  private static final String ENUM_AND_INT_FIELDS =
+      "{ \"name\":\"enum1\", \"type\":{\"type\":\"enum\", \"name\":\"enum1_values\", \"symbols\":[\"BLUE\",\"RED\", \"GREEN\"]} }, " +
+      "{ \"name\":\"int1\", \"type\":\"int\" }";
+
+  @Test
+  public void integratedValidationAcceptsValidRows() throws SerDeException {
+    Schema s = buildSchema(ENUM_AND_INT_FIELDS);
+    AvroSerializer as = new AvroSerializer(AvroSerializer.ValidationMode.INTEGRATED, 1, false);
+
+    GenericRecord r = ((AvroGenericRecordWritable) serializeRow(as, s, "RED", 42)).getRecord();
+    assertEquals("RED", r.get("enum1"));
+    assertEquals(42, r.get("int1"));
+  }
+
+  @Test
+  public void integratedValidationRejectsBadEnumsAndNulls() throws SerDeException {
+    Schema s = buildSchema(ENUM_AND_INT_FIELDS);
+    AvroSerializer as = new AvroSerializer(AvroSerializer.ValidationMode.INTEGRATED, 1, false);
+
+    try {
+      serializeRow(as, s, "PURPLE", 42);
+      fail("Should have rejected unknown enum symbol");
+    } catch(AvroSerializer.SerializeToAvroException e) {
+      assertTrue(e.toString().contains("PURPLE"));
+    }
+
+    try {
+      serializeRow(as, s, "RED", null);
+      fail("Should have rejected null in non-nullable field");
+    } catch(AvroSerializer.SerializeToAvroException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void integratedValidationRejectsWrongSizedFixed() throws SerDeException {
+    Schema s = buildSchema("{ \"name\":\"fixed1\", \"type\":{\"type\":\"fixed\", \"name\":\"threebytes\", \"size\":3} }");
+    AvroSerializer as = new AvroSerializer(AvroSerializer.ValidationMode.INTEGRATED, 1, false);
+
+    serializeRow(as, s, Arrays.asList((byte)1, (byte)2, (byte)3));
+    try {
+      serializeRow(as, s, Arrays.asList((byte)1, (byte)2));
+      fail("Should have rejected fixed of wrong size");
+    } catch(AvroSerializer.SerializeToAvroException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void sampledValidationOnlyChecksEveryNthRow() throws SerDeException {
+    Schema s = buildSchema(ENUM_AND_INT_FIELDS);
+    AvroSerializer as = new AvroSerializer(AvroSerializer.ValidationMode.SAMPLED, 3, false);
+
+    serializeRow(as, s, "RED", 1);    // Row 0 is validated
+    serializeRow(as, s, "PURPLE", 2); // Rows 1 and 2 are not
+    serializeRow(as, s, "PURPLE", 3);
+    try {
+      serializeRow(as, s, "PURPLE", 4);
+      fail("Row 3 should have been validated");
+    } catch(AvroSerializer.SerializeToAvroException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void fullValidationIsTheDefault() throws SerDeException {
+    Schema s = buildSchema(ENUM_AND_INT_FIELDS);
+    try {
+      serializeRow(new AvroSerializer(), s, "PURPLE", 42);
+      fail("Should have rejected unknown enum symbol");
+    } catch(AvroSerializer.SerializeToAvroException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void canSerializeNullableStructs() throws SerDeException {
+    Schema s = buildSchema("{ \"name\":\"struct1\", \"type\":[\"null\", {\"type\":\"record\", \"name\":\"struct1_name\", \"fields\": [\n" +
+                           "{ \"name\":\"sInt\", \"type\":\"int\" } ] } ] }");
+    AvroSerializer as = new AvroSerializer();
+
+    GenericRecord r = ((AvroGenericRecordWritable) serializeRow(as, s, Arrays.asList(77))).getRecord();
+    assertEquals(77, ((GenericRecord) r.get("struct1")).get("sInt"));
+
+    r = ((AvroGenericRecordWritable) serializeRow(as, s, (Object) null)).getRecord();
+    assertNull(r.get("struct1"));
+  }
+
+  @Test
+  public void sameSerializerCanHandleDifferentSchemas() throws SerDeException {
+    AvroSerializer as = new AvroSerializer();
+    Schema ints = buildSchema("{ \"name\":\"int1\", \"type\":\"int\" }");
+    Schema strings = buildSchema("{ \"name\":\"string1\", \"type\":\"string\" }");
+
+    assertEquals(1, ((AvroGenericRecordWritable) serializeRow(as, ints, 1)).getRecord().get("int1"));
+    assertEquals("two", ((AvroGenericRecordWritable) serializeRow(as, strings, "two")).getRecord().get("string1"));
+    assertEquals(3, ((AvroGenericRecordWritable) serializeRow(as, ints, 3)).getRecord().get("int1"));
+  }
+
+  @Test
+  public void reusedRecordsAreRefilledForEachRow() throws SerDeException {
+    String fields = "{ \"name\":\"list1\", \"type\":{\"type\":\"array\", \"items\":{\"type\":\"record\", \"name\":\"inner\", \"fields\": [" +
+                    "{ \"name\":\"sInt\", \"type\":\"int\" } ] } } }, " +
+                    "{ \"name\":\"bytes1\", \"type\":\"bytes\" }";
+    Schema s = buildSchema(fields);
+    AvroSerializer as = new AvroSerializer(AvroSerializer.ValidationMode.FULL, 1, true);
+
+    GenericRecord r1 = ((AvroGenericRecordWritable) serializeRow(as, s,
+        Arrays.<Object>asList(Arrays.asList(1), Arrays.asList(2), Arrays.asList(3)), Arrays.asList((byte)1, (byte)2, (byte)3))).getRecord();
+    List<?> list1 = (List<?>) r1.get("list1");
+    Object firstInner = list1.get(0);
+    assertEquals(3, list1.size());
+
+    GenericRecord r2 = ((AvroGenericRecordWritable) serializeRow(as, s,
+        Arrays.<Object>asList(Arrays.asList(4)), Arrays.asList((byte)9))).getRecord();
+    assertSame(r1, r2);
+    List<?> list2 = (List<?>) r2.get("list1");
+    assertSame(list1, list2);
+    assertEquals(1, list2.size());
+    assertSame(firstInner, list2.get(0));
+    assertEquals(4, ((GenericRecord) list2.get(0)).get("sInt"));
+    assertEquals(ByteBuffer.wrap(new byte[] {9}), r2.get("bytes1"));
+  }
 }
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.ql.exec.FileSinkOperator;
+import org.apache.hadoop.hive.ql.exec.Utilities;
+import org.apache.hadoop.hive.ql.plan.ExprNodeColumnDesc;
+import org.apache.hadoop.hive.ql.plan.ExprNodeConstantDesc;
+import org.apache.hadoop.hive.ql.plan.ExprNodeDesc;
+import org.apache.hadoop.hive.ql.plan.ExprNodeGenericFuncDesc;
+import org.apache.hadoop.hive.ql.plan.TableScanDesc;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFIn;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFOPAnd;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFOPEqual;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFOPOr;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestBloomFilterPruner {
+  private static final Schema schema = Schema.parse("{\n" +
+      "    \"namespace\": \"com.linkedin.haivvreo\",\n" +
+      "    \"name\": \"bloom_test\",\n" +
+      "    \"type\": \"record\",\n" +
+      "    \"fields\": [\n" +
+      "        { \"name\":\"memberId\", \"type\":\"long\" },\n" +
+      "        { \"name\":\"email\", \"type\":[\"null\", \"string\"] }\n" +
+      "    ]\n" +
+      "}");
+
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = File.createTempFile("bloom", "");
+    dir.delete();
+    assertTrue(dir.mkdirs());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtil.fullyDelete(dir);
+  }
+
+  @Test
+  public void foldedFilterStillFindsEverythingAdded() {
+    ColumnBloomFilter filter = new ColumnBloomFilter("id", ColumnStats.Kind.LONG, 1000000, 0.01);
+    long before = filter.getNumBits();
+    for(long i = 0; i < 1000; i++)
+      filter.add(i);
+    filter.fold();
+    assertTrue(filter.getNumBits() < before / 100);
+
+    for(long i = 0; i < 1000; i++)
+      assertTrue(filter.mightContain(i));
+    int falsePositives = 0;
+    for(long i = 1000; i < 11000; i++)
+      if(filter.mightContain(i)) falsePositives++;
+    assertTrue("False positives: " + falsePositives, falsePositives < 300);
+  }
+
+  @Test
+  public void hashesAreKeptUntilTheFilterIsNeeded() {
+    // A few values: the filter is only made once they're done, and just big enough for them
+    ColumnBloomFilter few = new ColumnBloomFilter("id", ColumnStats.Kind.LONG, 1000, 0.01);
+    for(long i = 0; i < 50; i++)
+      few.add(i);
+    few.add(0L);
+    assertTrue(few.mightContain(49L));
+    assertFalse(few.mightContain(50L));
+    few.fold();
+    assertEquals(1024, few.getNumBits());
+    for(long i = 0; i < 50; i++)
+      assertTrue(few.mightContain(i));
+
+    // More than it's sized for: made at full size once the hashes would take half its room
+    ColumnBloomFilter many = new ColumnBloomFilter("id", ColumnStats.Kind.LONG, 1000, 0.01);
+    for(long i = 0; i < 5000; i++)
+      many.add(i);
+    many.fold();
+    assertEquals(16384, many.getNumBits());
+    for(long i = 0; i < 5000; i++)
+      assertTrue(many.mightContain(i));
+  }
+
+  private static ExprNodeDesc column(String name) {
+    return new ExprNodeColumnDesc(TypeInfoFactory.longTypeInfo, name, "t", false);
+  }
+
+  private static ExprNodeDesc constant(Object value) {
+    return new ExprNodeConstantDesc(value);
+  }
+
+  private static ExprNodeDesc call(GenericUDF udf, ExprNodeDesc... children) {
+    return new ExprNodeGenericFuncDesc(TypeInfoFactory.booleanTypeInfo, udf,
+        new ArrayList<ExprNodeDesc>(Arrays.asList(children)));
+  }
+
+  @Test
+  public void looksUpEqualitiesAndInLists() {
+    Map<String, ColumnBloomFilter> filters = new HashMap<String, ColumnBloomFilter>();
+    ColumnBloomFilter ids = new ColumnBloomFilter("memberId", ColumnStats.Kind.LONG, 1000, 0.001);
+    ids.add(42L);
+    ids.add(7); // Ints are kept as longs
+    filters.put(ids.getName(), ids);
+    ColumnBloomFilter emails = new ColumnBloomFilter("email", ColumnStats.Kind.STRING, 1000, 0.001);
+    emails.add(new Utf8("a@b.com"));
+    filters.put(emails.getName(), emails);
+
+    assertTrue(BloomFilterPruner.mightMatch(call(new GenericUDFOPEqual(), column("memberid"), constant(42)), filters));
+    assertTrue(BloomFilterPruner.mightMatch(call(new GenericUDFOPEqual(), constant(7L), column("memberid")), filters));
+    assertFalse(BloomFilterPruner.mightMatch(call(new GenericUDFOPEqual(), column("memberid"), constant(43)), filters));
+    assertTrue(BloomFilterPruner.mightMatch(call(new GenericUDFOPEqual(), column("email"), constant("a@b.com")), filters));
+    assertFalse(BloomFilterPruner.mightMatch(call(new GenericUDFOPEqual(), column("email"), constant("c@d.com")), filters));
+
+    assertTrue(BloomFilterPruner.mightMatch(call(new GenericUDFIn(), column("memberid"), constant(1), constant(42)), filters));
+    assertFalse(BloomFilterPruner.mightMatch(call(new GenericUDFIn(), column("memberid"), constant(1), constant(2)), filters));
+
+    ExprNodeDesc noId = call(new GenericUDFOPEqual(), column("memberid"), constant(43));
+    ExprNodeDesc email = call(new GenericUDFOPEqual(), column("email"), constant("a@b.com"));
+    assertFalse(BloomFilterPruner.mightMatch(call(new GenericUDFOPAnd(), noId, email), filters));
+    assertTrue(BloomFilterPruner.mightMatch(call(new GenericUDFOPOr(), noId, email), filters));
+
+    // Anything that can't be looked up might match
+    assertTrue(BloomFilterPruner.mightMatch(call(new GenericUDFOPEqual(), column("other"), constant(43)), filters));
+    assertTrue(BloomFilterPruner.mightMatch(call(new GenericUDFOPEqual(), column("memberid"), constant(43.0)), filters));
+    assertTrue(BloomFilterPruner.mightMatch(call(new GenericUDFOPEqual(), column("memberid"), column("other")), filters));
+  }
+
+  private void writeFile(JobConf conf, String name, long... ids) throws IOException {
+    writeFile(conf, new Path(dir.getPath(), name), ids);
+  }
+
+  private void writeFile(JobConf conf, Path path, long... ids) throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty(HaivvreoUtils.SCHEMA_LITERAL, schema.toString());
+    properties.setProperty(AvroContainerOutputFormat.BLOOM_COLUMNS, "memberid");
+    FileSinkOperator.RecordWriter writer = new AvroContainerOutputFormat().getHiveRecordWriter(conf,
+        path, AvroGenericRecordWritable.class, false, properties, null);
+    for(long id : ids) {
+      GenericRecord r = new GenericData.Record(schema);
+      r.put("memberId", id);
+      writer.write(new AvroGenericRecordWritable(r));
+    }
+    writer.close(false);
+  }
+
+  private List<String> listed(JobConf conf) throws IOException {
+    List<String> names = new ArrayList<String>();
+    for(FileStatus file : new AvroContainerInputFormat().listStatus(conf))
+      names.add(file.getPath().getName());
+    return names;
+  }
+
+  @Test
+  public void inputFormatSkipsFilesWithoutTheValuesLookedUp() throws IOException {
+    JobConf conf = new JobConf();
+    writeFile(conf, "000000_0", 1, 2, 3);
+    writeFile(conf, "000001_0", 4, 5, 6);
+    assertTrue(new File(dir, ColumnBloomFilter.sidecarPath(new Path("000000_0")).getName()).exists());
+    FileInputFormat.setInputPaths(conf, new Path(dir.getPath()));
+
+    assertEquals(2, listed(conf).size()); // No filter
+
+    conf.set(TableScanDesc.FILTER_EXPR_CONF_STR,
+        Utilities.serializeExpression(call(new GenericUDFOPEqual(), column("memberid"), constant(5L))));
+    assertEquals(Arrays.asList("000001_0"), listed(conf));
+
+    conf.set(TableScanDesc.FILTER_EXPR_CONF_STR,
+        Utilities.serializeExpression(call(new GenericUDFIn(), column("memberid"), constant(100L), constant(200L))));
+    assertEquals(0, listed(conf).size());
+  }
+
+  @Test
+  public void filtersFollowTheirFilesThroughHiveMovingThemIntoPlace() throws Exception {
+    JobConf conf = new JobConf();
+    FileSystem fs = FileSystem.getLocal(conf);
+
+    // Each task writes to _task_tmp.<dir>, and its file is moved to _tmp.<dir> once it succeeds...
+    Path spec = new Path(dir.getPath(), "-ext-10000");
+    for(String task : new String[] {"000000_0", "000001_0"}) {
+      Path written = new Path(Utilities.toTaskTempPath(spec), "_tmp." + task);
+      writeFile(conf, written, task.startsWith("000000") ? new long[] {1} : new long[] {2});
+      Path committed = new Path(Utilities.toTempPath(spec), task);
+      fs.mkdirs(committed.getParent());
+      assertTrue(fs.rename(written, committed));
+    }
+
+    // ...then the job moves _tmp.<dir> to <dir>, weeding out what it takes for stray output.
+    Utilities.mvFileToFinalPath(spec.toString(), conf, true, LogFactory.getLog(TestBloomFilterPruner.class),
+        null, null, Reporter.NULL);
+    FileInputFormat.setInputPaths(conf, spec);
+    conf.set(TableScanDesc.FILTER_EXPR_CONF_STR,
+        Utilities.serializeExpression(call(new GenericUDFOPEqual(), column("memberid"), constant(2L))));
+    assertEquals(Arrays.asList("000001_0"), listed(conf));
+  }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.util.Utf8;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.ql.exec.FileSinkOperator;
+import org.apache.hadoop.hive.ql.exec.Utilities;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestColumnStats {
+  private static final Schema schema = Schema.parse("{\n" +
+      "    \"namespace\": \"com.linkedin.haivvreo\",\n" +
+      "    \"name\": \"stats_test\",\n" +
+      "    \"type\": \"record\",\n" +
+      "    \"fields\": [\n" +
+      "        { \"name\":\"id\", \"type\":\"int\" },\n" +
+      "        { \"name\":\"name\", \"type\":[\"null\", \"string\"] },\n" +
+      "        { \"name\":\"tags\", \"type\":{\"type\":\"array\", \"items\":\"string\"} }\n" +
+      "    ]\n" +
+      "}");
+
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = File.createTempFile("stats", "");
+    dir.delete();
+    assertTrue(dir.mkdirs());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtil.fullyDelete(dir);
+  }
+
+  @Test
+  public void sketchEstimatesDistinctValuesAndMerges() {
+    HyperLogLog first = new HyperLogLog();
+    HyperLogLog second = new HyperLogLog();
+    for(long i = 0; i < 60000; i++) {
+      first.add(HyperLogLog.hash(i));
+      first.add(HyperLogLog.hash(i)); // Repeats aren't counted
+      second.add(HyperLogLog.hash(i + 40000));
+    }
+    assertEquals(60000, first.estimate(), 60000 * 0.05);
+
+    first.merge(HyperLogLog.fromBytes(ByteBuffer.wrap(second.toBytes())));
+    assertEquals(100000, first.estimate(), 100000 * 0.05);
+    assertEquals(0, new HyperLogLog().estimate());
+  }
+
+  @Test
+  public void keepsCountsAndRangeOfValues() {
+    ColumnStats ids = new ColumnStats("id", ColumnStats.kindOf(schema.getField("id").schema()));
+    for(int i : new int[] {5, -3, 12, 5})
+      ids.add(i);
+    ids.add(null);
+    assertEquals(5, ids.getCount());
+    assertEquals(1, ids.getNullCount());
+    assertEquals(-3L, ids.getMin());
+    assertEquals(12L, ids.getMax());
+    assertEquals(3, ids.getDistinctCount());
+
+    // Strings are the same value whether read as Utf8 or String
+    ColumnStats names = new ColumnStats("name", ColumnStats.kindOf(schema.getField("name").schema()));
+    assertEquals(ColumnStats.Kind.STRING, names.getKind());
+    names.add(new Utf8("bob"));
+    names.add("bob");
+    names.add("alice");
+    assertEquals(2, names.getDistinctCount());
+    assertEquals("alice", names.getMin());
+    assertEquals("bob", names.getMax());
+
+    ColumnStats tags = new ColumnStats("tags", ColumnStats.kindOf(schema.getField("tags").schema()));
+    tags.add(new GenericData.Array<Object>(0, schema.getField("tags").schema()));
+    tags.add(null);
+    assertEquals(2, tags.getCount());
+    assertEquals(1, tags.getNullCount());
+    assertNull(tags.getMin());
+    assertEquals(-1, tags.getDistinctCount());
+  }
+
+  private FileSinkOperator.RecordWriter writer(JobConf conf, String name) throws IOException {
+    return writer(conf, new Path(dir.getPath(), name));
+  }
+
+  private FileSinkOperator.RecordWriter writer(JobConf conf, Path path) throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty(HaivvreoUtils.SCHEMA_LITERAL, schema.toString());
+    properties.setProperty(AvroContainerOutputFormat.COLUMN_STATS, "true");
+    return new AvroContainerOutputFormat().getHiveRecordWriter(conf, path,
+        AvroGenericRecordWritable.class, false, properties, null);
+  }
+
+  private File sidecar(String name) {
+    return new File(dir, ColumnStats.sidecarPath(new Path(name)).getName());
+  }
+
+  private void write(FileSinkOperator.RecordWriter writer, int id, String name) throws IOException {
+    GenericRecord r = new GenericData.Record(schema);
+    r.put("id", id);
+    r.put("name", name);
+    r.put("tags", new GenericData.Array<Object>(0, schema.getField("tags").schema()));
+    writer.write(new AvroGenericRecordWritable(r));
+  }
+
+  @Test
+  public void writtenBesideEachFileAndMergedByPartition() throws IOException {
+    JobConf conf = new JobConf();
+    FileSystem fs = FileSystem.getLocal(conf);
+
+    FileSinkOperator.RecordWriter first = writer(conf, "000000_0");
+    for(int i = 0; i < 10; i++)
+      write(first, i, i % 2 == 0 ? null : "name " + i);
+    first.close(false);
+
+    FileSinkOperator.RecordWriter second = writer(conf, "000001_0");
+    for(int i = 5; i < 20; i++)
+      write(second, i, "name " + i);
+    second.close(false);
+
+    // An aborted writer leaves no stats...
+    FileSinkOperator.RecordWriter aborted = writer(conf, "000002_0");
+    write(aborted, 100, "aborted");
+    aborted.close(true);
+    assertFalse(sidecar("000002_0").exists());
+
+    // ...and those of a file since removed are ignored.
+    FileSinkOperator.RecordWriter lost = writer(conf, "000001_1");
+    write(lost, 100, "lost");
+    lost.close(false);
+    assertTrue(sidecar("000001_1").exists());
+    assertTrue(new File(dir, "000001_1").delete());
+
+    Map<String, ColumnStats> stats = ColumnStats.readPartition(fs, new Path(dir.getPath()));
+    assertEquals(3, stats.size());
+
+    ColumnStats ids = stats.get("id");
+    assertEquals(25, ids.getCount());
+    assertEquals(0, ids.getNullCount());
+    assertEquals(0L, ids.getMin());
+    assertEquals(19L, ids.getMax());
+    assertEquals(20, ids.getDistinctCount());
+
+    ColumnStats names = stats.get("name");
+    assertEquals(25, names.getCount());
+    assertEquals(5, names.getNullCount());
+    assertEquals("name 1", names.getMin());
+    assertEquals("name 9", names.getMax());
+    assertEquals(17, names.getDistinctCount()); // 1, 3 and 5...19
+
+    assertEquals(25, stats.get("tags").getCount());
+    assertEquals(-1, stats.get("tags").getDistinctCount());
+  }
+
+  @Test
+  public void takenFromRecordsPassedThroughWithoutDecodingThem() throws IOException {
+    JobConf conf = new JobConf();
+    FileSinkOperator.RecordWriter writer = writer(conf, "000000_0");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+    GenericDatumWriter<GenericRecord> gdw = new GenericDatumWriter<GenericRecord>(schema);
+    for(int i = 0; i < 3; i++) {
+      GenericRecord r = new GenericData.Record(schema);
+      r.put("id", i);
+      r.put("name", i == 1 ? null : "name " + i);
+      r.put("tags", new GenericData.Array<Object>(0, schema.getField("tags").schema()));
+      out.reset();
+      gdw.write(r, encoder);
+      encoder.flush();
+
+      AvroGenericRecordWritable w = new AvroGenericRecordWritable() {
+        @Override
+        public GenericRecord getRecord() {
+          throw new AssertionError("Decoded a record passed through");
+        }
+      };
+      w.setEncoded(schema, null, out.toByteArray(), 0, out.size());
+      writer.write(w);
+    }
+    writer.close(false);
+
+    Map<String, ColumnStats> stats = ColumnStats.readPartition(FileSystem.getLocal(conf), new Path(dir.getPath()));
+    assertEquals(3, stats.get("id").getCount());
+    assertEquals(0L, stats.get("id").getMin());
+    assertEquals(2L, stats.get("id").getMax());
+    assertEquals(1, stats.get("name").getNullCount());
+    assertEquals("name 0", stats.get("name").getMin());
+    assertEquals("name 2", stats.get("name").getMax());
+    assertEquals(3, stats.get("tags").getCount());
+    assertEquals(0, stats.get("tags").getNullCount());
+  }
+
+  @Test
+  public void followTheirFilesThroughHiveMovingThemIntoPlace() throws Exception {
+    JobConf conf = new JobConf();
+    FileSystem fs = FileSystem.getLocal(conf);
+
+    // A task writes to _task_tmp.<dir>, and its file is moved to _tmp.<dir> once it succeeds...
+    Path spec = new Path(dir.getPath(), "-ext-10000");
+    Path written = new Path(Utilities.toTaskTempPath(spec), "_tmp.000000_0");
+    Path committed = new Path(Utilities.toTempPath(spec), "000000_0");
+    assertEquals(committed, Sidecars.committed(written));
+    assertEquals(new Path(Utilities.toTempPath(spec), "ds=1/000000_0"),
+        Sidecars.committed(new Path(Utilities.toTaskTempPath(spec), "ds=1/_tmp.000000_0")));
+
+    // (One row, so the stats are bigger than the file, and would win out were
+    // they taken for the same task's output.)
+    FileSinkOperator.RecordWriter writer = writer(conf, written);
+    write(writer, 7, "seven");
+    writer.close(false);
+    assertTrue(fs.mkdirs(committed.getParent()));
+    assertTrue(fs.rename(written, committed));
+
+    // ...then the job moves _tmp.<dir> to <dir>, weeding out what it takes for stray output.
+    Utilities.mvFileToFinalPath(spec.toString(), conf, true, LogFactory.getLog(TestColumnStats.class),
+        null, null, Reporter.NULL);
+    File moved = new File(dir, "-ext-10000");
+    assertTrue(new File(moved, "000000_0").exists());
+    assertTrue(new File(moved, ColumnStats.sidecarPath(committed).getName()).exists());
+
+    Map<String, ColumnStats> stats = ColumnStats.readPartition(fs, spec);
+    assertEquals(1, stats.get("id").getCount());
+    assertEquals(7L, stats.get("id").getMin());
+  }
+}
@@ -18,9 +18,16 @@ package com.linkedin.haivvreo;
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.mapred.JobConf;
 import org.junit.Test;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 import static org.junit.Assert.*;
 import static org.junit.Assert.assertFalse;
@@ -71,4 +78,302 @@ public class TestGenericAvroRecordWritable {
     assertEquals("The", gr2.get("first").toString());
     assertEquals("Doctor", gr2.get("last").toString());
   }
+
+  private static byte[] write(AvroGenericRecordWritable garw) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    garw.write(new DataOutputStream(baos));
+    return baos.toByteArray();
+  }
+
+  private static AvroGenericRecordWritable read(byte[] bytes) throws IOException {
+    AvroGenericRecordWritable garw = new AvroGenericRecordWritable();
+    garw.readFields(new DataInputStream(new ByteArrayInputStream(bytes)));
+    return garw;
+  }
+
+  private static Schema uniqueSchema(String name) {
+    return Schema.parse(schemaJSON.replace("TestPerson", name));
+  }
+
+  @Test
+  public void sharedSchemasAreNotWrittenWithEachRecord() throws IOException {
+    Schema schema = uniqueSchema("SharedPerson");
+    GenericRecord gr = new GenericData.Record(schema);
+    gr.put("first", "The");
+    gr.put("last", "Doctor");
+
+    byte[] inline = write(new AvroGenericRecordWritable(gr));
+
+    Configuration conf = new Configuration();
+    SchemaTable.share(conf, schema);
+    AvroGenericRecordWritable sharing = new AvroGenericRecordWritable(gr);
+    sharing.setConf(conf);
+    byte[] shared = write(sharing);
+
+    assertTrue(shared.length < inline.length - schema.toString(false).length());
+
+    GenericRecord gr2 = read(shared).getRecord();
+    assertEquals(schema, gr2.getSchema());
+    assertEquals("Doctor", gr2.get("last").toString());
+  }
+
+  @Test
+  public void sharedSchemasAreLoadedFromTheConfiguration() throws IOException {
+    Schema schema = uniqueSchema("ConfiguredPerson");
+    Configuration conf = new Configuration();
+    conf.set(SchemaTable.SHARED_SCHEMAS, Long.toHexString(SchemaTable.fingerprint(schema)));
+    conf.set(SchemaTable.SHARED_SCHEMA_PREFIX + Long.toHexString(SchemaTable.fingerprint(schema)), schema.toString(false));
+
+    long fingerprint = SchemaTable.fingerprint(schema);
+    assertNull(SchemaTable.lookup(fingerprint));
+
+    new AvroGenericRecordWritable().setConf(conf);
+    assertTrue(SchemaTable.isShared(conf, fingerprint));
+    assertEquals(schema, SchemaTable.lookup(fingerprint));
+  }
+
+  @Test
+  public void schemasSharedWithOneJobAreWrittenInFullForAnother() throws IOException {
+    Schema schema = uniqueSchema("OtherJobPerson");
+    GenericRecord gr = new GenericData.Record(schema);
+    gr.put("first", "The");
+    gr.put("last", "Doctor");
+
+    // The same JVM sets up job A, sharing the schema, then job B, not sharing it.
+    Configuration jobA = new Configuration();
+    SchemaTable.share(jobA, schema);
+    Configuration jobB = new Configuration();
+    assertFalse(SchemaTable.isShared(jobB, SchemaTable.fingerprint(schema)));
+
+    AvroGenericRecordWritable forA = new AvroGenericRecordWritable(gr);
+    forA.setConf(jobA);
+    AvroGenericRecordWritable forB = new AvroGenericRecordWritable(gr);
+    forB.setConf(jobB);
+    byte[] sharedBytes = write(forA);
+    byte[] inlineBytes = write(forB);
+    assertTrue(inlineBytes.length > sharedBytes.length + schema.toString(false).length());
+
+    // Job B's tasks need nothing but the record to read it.
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(inlineBytes));
+    in.readLong();
+    assertTrue(in.readBoolean());
+  }
+
+  @Test(expected = IOException.class)
+  public void unknownFingerprintsAreReported() throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream daos = new DataOutputStream(baos);
+    daos.writeLong(SchemaTable.fingerprint(uniqueSchema("NeverSeenPerson")));
+    daos.writeBoolean(false);
+
+    read(baos.toByteArray());
+  }
+
+  @Test
+  public void schemasLargerThan64kCanBeWritten() throws IOException {
+    StringBuilder sb = new StringBuilder("{\"name\":\"Big\", \"type\":\"record\", \"fields\":[");
+    for(int i = 0; i < 3000; i++) {
+      if(i > 0) sb.append(",");
+      sb.append("{\"name\":\"a_reasonably_long_field_name_").append(i).append("\", \"type\":\"int\"}");
+    }
+    Schema schema = Schema.parse(sb.append("]}").toString());
+    assertTrue(schema.toString(false).length() > 65535);
+
+    GenericRecord gr = new GenericData.Record(schema);
+    for(int i = 0; i < 3000; i++) gr.put(i, i);
+
+    GenericRecord gr2 = read(write(new AvroGenericRecordWritable(gr))).getRecord();
+    assertEquals(2999, gr2.get(2999));
+  }
+
+  @Test
+  public void readFieldsReusesOnlyItsOwnRecords() throws IOException {
+    Schema schema = Schema.parse(schemaJSON);
+    GenericRecord gr = new GenericData.Record(schema);
+    gr.put("first", "The");
+    gr.put("last", "Doctor");
+    byte[] bytes = write(new AvroGenericRecordWritable(gr));
+
+    GenericRecord callers = new GenericData.Record(schema);
+    AvroGenericRecordWritable garw = new AvroGenericRecordWritable(callers);
+    garw.readFields(new DataInputStream(new ByteArrayInputStream(bytes)));
+    GenericRecord first = garw.getRecord();
+    assertNotSame(callers, first);
+    assertNull(callers.get("first"));
+
+    garw.readFields(new DataInputStream(new ByteArrayInputStream(bytes)));
+    assertSame(first, garw.getRecord());
+    assertEquals("Doctor", garw.getRecord().get("last").toString());
+  }
+
+  @Test
+  public void encodedRecordsAreDecodedOnlyWhenNeeded() throws IOException {
+    Schema schema = Schema.parse(schemaJSON);
+    GenericRecord gr = new GenericData.Record(schema);
+    gr.put("first", "The");
+    gr.put("last", "Doctor");
+    byte[] bytes = write(new AvroGenericRecordWritable(gr));
+
+    AvroGenericRecordWritable garw = read(bytes);
+    assertNull(garw.record); // Not decoded yet
+
+    // Passing it along shouldn't need decoding either
+    byte[] rewritten = write(garw);
+    assertNull(garw.record);
+    assertArrayEquals(bytes, rewritten);
+
+    assertEquals("Doctor", garw.getRecord().get("last").toString());
+  }
+
+  private static int sign(int i) {
+    return i < 0 ? -1 : (i == 0 ? 0 : 1);
+  }
+
+  // The comparator as Hadoop would sort the job's map output with
+  private static RawComparator<?> comparatorFor(Configuration conf) {
+    JobConf job = new JobConf(conf);
+    AvroGenericRecordWritable.Comparator.setOutputKeyComparator(job);
+    RawComparator<?> comparator = job.getOutputKeyComparator();
+    assertTrue(comparator instanceof AvroGenericRecordWritable.Comparator);
+    return comparator;
+  }
+
+  @Test
+  public void rawComparisonMatchesDecodedComparison() throws IOException {
+    Schema inlineSchema = uniqueSchema("ComparedPerson");
+    Schema sharedSchema = uniqueSchema("ComparedSharedPerson");
+    Configuration conf = new Configuration();
+    SchemaTable.share(conf, sharedSchema);
+
+    String[][] names = {{"The", "Doctor"}, {"The", "Master"}, {"Rose", "Tyler"}, {"Rose", "Tyler"}, {"", "K9"}};
+    List<byte[]> encoded = new ArrayList<byte[]>();
+    List<AvroGenericRecordWritable> decoded = new ArrayList<AvroGenericRecordWritable>();
+    for(Schema schema : new Schema[] {inlineSchema, sharedSchema}) {
+      for(String[] name : names) {
+        GenericRecord gr = new GenericData.Record(schema);
+        gr.put("first", name[0]);
+        gr.put("last", name[1]);
+        AvroGenericRecordWritable garw = new AvroGenericRecordWritable(gr);
+        garw.setConf(conf);
+        byte[] bytes = write(garw);
+        encoded.add(bytes);
+        decoded.add(read(bytes));
+      }
+    }
+
+    RawComparator<?> comparator = comparatorFor(conf);
+
+    for(int i = 0; i < encoded.size(); i++) {
+      for(int j = 0; j < encoded.size(); j++) {
+        byte[] b1 = encoded.get(i);
+        byte[] b2 = encoded.get(j);
+        int raw = comparator.compare(b1, 0, b1.length, b2, 0, b2.length);
+        int expected = decoded.get(i).compareTo(decoded.get(j));
+        assertEquals("Comparing " + i + " to " + j, sign(expected), sign(raw));
+      }
+    }
+
+    // Same schema, so ordered by field: ("Rose", "Tyler") < ("The", "Doctor") < ("The", "Master")
+    assertTrue(decoded.get(2).compareTo(decoded.get(0)) < 0);
+    assertTrue(decoded.get(0).compareTo(decoded.get(1)) < 0);
+    assertEquals(0, decoded.get(2).compareTo(decoded.get(3)));
+    assertEquals(decoded.get(2), decoded.get(3));
+    assertEquals(decoded.get(2).hashCode(), decoded.get(3).hashCode());
+  }
+
+  @Test
+  public void sharedSchemasAreSortedInAJvmThatHasSeenNoneOfThem() throws IOException {
+    Schema schema = uniqueSchema("SortedSharedPerson");
+    Configuration conf = new Configuration();
+    SchemaTable.share(conf, schema);
+
+    String[][] names = {{"The", "Master"}, {"Rose", "Tyler"}, {"The", "Doctor"}};
+    List<byte[]> encoded = new ArrayList<byte[]>();
+    for(String[] name : names) {
+      GenericRecord gr = new GenericData.Record(schema);
+      gr.put("first", name[0]);
+      gr.put("last", name[1]);
+      AvroGenericRecordWritable garw = new AvroGenericRecordWritable(gr);
+      garw.setConf(conf);
+      encoded.add(write(garw));
+    }
+
+    // As on the reduce side, or in a merge, where no serde has been set up
+    SchemaTable.clear();
+    assertNull(SchemaTable.lookup(SchemaTable.fingerprint(schema)));
+
+    final RawComparator<?> comparator = comparatorFor(conf);
+    Collections.sort(encoded, new Comparator<byte[]>() {
+      @Override
+      public int compare(byte[] b1, byte[] b2) {
+        return comparator.compare(b1, 0, b1.length, b2, 0, b2.length);
+      }
+    });
+
+    assertEquals("Tyler", read(encoded.get(0)).getRecord().get("last").toString());
+    assertEquals("Doctor", read(encoded.get(1)).getRecord().get("last").toString());
+    assertEquals("Master", read(encoded.get(2)).getRecord().get("last").toString());
+  }
+
+  @Test
+  public void schemaTableIsBoundedAndReloadsSharedSchemasItDrops() throws IOException {
+    Schema schema = uniqueSchema("DroppedSharedPerson");
+    Configuration conf = new Configuration();
+    long fingerprint = SchemaTable.share(conf, schema);
+
+    // Whoever registers a fingerprint first, everyone gets their instance.
+    assertSame(SchemaTable.lookup(fingerprint), SchemaTable.register(fingerprint, Schema.parse(schema.toString())));
+
+    GenericRecord gr = new GenericData.Record(schema);
+    gr.put("first", "The");
+    gr.put("last", "Doctor");
+    AvroGenericRecordWritable garw = new AvroGenericRecordWritable(gr);
+    garw.setConf(conf);
+    byte[] bytes = write(garw);
+
+    for(long i = 0; i < SchemaTable.MAX_SCHEMAS; i++)
+      SchemaTable.register(fingerprint + 1 + i, schema);
+    assertNull(SchemaTable.lookup(fingerprint));
+
+    // A task configured before the schema was dropped still reads its records.
+    AvroGenericRecordWritable reader = new AvroGenericRecordWritable();
+    reader.setConf(conf);
+    SchemaTable.clear();
+    reader.readFields(new DataInputStream(new ByteArrayInputStream(bytes)));
+    assertEquals("Doctor", reader.getRecord().get("last").toString());
+  }
+
+  @Test
+  public void registeredComparatorSortsByDefaultAndFallsBackOnTheLastJobSeen() throws IOException {
+    JobConf job = new JobConf();
+    job.setMapOutputKeyClass(AvroGenericRecordWritable.class);
+    final RawComparator<?> comparator = job.getOutputKeyComparator();
+    assertTrue(comparator instanceof AvroGenericRecordWritable.Comparator);
+
+    Schema schema = uniqueSchema("DefaultSortedPerson");
+    Configuration conf = new Configuration();
+    long fingerprint = SchemaTable.share(conf, schema);
+    List<byte[]> encoded = new ArrayList<byte[]>();
+    for(String last : new String[] {"Tyler", "Doctor"}) {
+      GenericRecord gr = new GenericData.Record(schema);
+      gr.put("first", "The");
+      gr.put("last", last);
+      AvroGenericRecordWritable garw = new AvroGenericRecordWritable(gr);
+      garw.setConf(conf); // Loads the job's shared schemas, as a task's serde would
+      encoded.add(write(garw));
+    }
+
+    // Dropped from the table, but still loadable from the job last seen
+    for(long i = 0; i < SchemaTable.MAX_SCHEMAS; i++)
+      SchemaTable.register(fingerprint + 1 + i, schema);
+    assertNull(SchemaTable.lookup(fingerprint));
+
+    Collections.sort(encoded, new Comparator<byte[]>() {
+      @Override
+      public int compare(byte[] b1, byte[] b2) {
+        return comparator.compare(b1, 0, b1.length, b2, 0, b2.length);
+      }
+    });
+    assertEquals("Doctor", read(encoded.get(0)).getRecord().get("last").toString());
+  }
 }
@@ -20,8 +20,13 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.hive.serde2.SerDeException;
+import org.apache.hadoop.mapred.JobConf;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.Properties;
@@ -29,6 +34,7 @@ import java.util.Properties;
 import static org.junit.Assert.assertEquals;
 import static com.linkedin.haivvreo.HaivvreoUtils.*;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
 public class TestHaivvreoUtils {
@@ -197,4 +203,54 @@ public class TestHaivvreoUtils {
       if(miniDfs != null) miniDfs.shutdown();
     }
   }
+
+  @Test
+  public void schemasFromUrlsAreSharedWithTheJob() throws IOException, SerDeException {
+    File file = File.createTempFile("schema", ".avsc");
+    try {
+      FileWriter out = new FileWriter(file);
+      out.write(TestAvroObjectInspectorGenerator.RECORD_SCHEMA);
+      out.close();
+      String url = file.toURI().toURL().toString();
+
+      Configuration conf = new Configuration();
+      Properties props = new Properties();
+      props.put(SCHEMA_URL, url);
+      new AvroSerDe().initialize(conf, props);
+      assertNotNull(conf.get(SchemaTable.SHARED_URL_PREFIX + url));
+      assertEquals(Schema.parse(TestAvroObjectInspectorGenerator.RECORD_SCHEMA), SchemaTable.lookupUrl(conf, url));
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void tasksUseSchemasSharedWithTheJobRatherThanTheirUrls() throws IOException, HaivvreoException {
+    Schema expected = Schema.parse(TestAvroObjectInspectorGenerator.RECORD_SCHEMA);
+    Configuration client = new Configuration();
+    SchemaTable.shareUrl(client, "not:///a.real.url", expected);
+
+    Properties props = new Properties();
+    props.put(SCHEMA_URL, "not:///a.real.url");
+    JobConf task = new JobConf(client);
+    HiveConf.setVar(task, HiveConf.ConfVars.PLAN, "file:///a/plan");
+    assertEquals(expected, determineSchemaOrThrowException(task, props));
+
+    // Outside a job, the schema is always read from where it is.
+    try {
+      determineSchemaOrThrowException(new JobConf(client), props);
+      fail("Should have tried to open that bogus URL");
+    } catch(MalformedURLException e) {
+      assertEquals("unknown protocol: not", e.getMessage());
+    }
+  }
+
+  @Test
+  public void literalSchemasHaveNoUrl() {
+    Properties props = new Properties();
+    props.put(SCHEMA_URL, "http://example.com/schema.avsc");
+    assertEquals("http://example.com/schema.avsc", getSchemaUrl(props));
+    props.put(SCHEMA_LITERAL, TestAvroObjectInspectorGenerator.RECORD_SCHEMA);
+    assertNull(getSchemaUrl(props));
+  }
 }
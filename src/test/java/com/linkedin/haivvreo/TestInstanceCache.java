@@ -17,7 +17,13 @@ package com.linkedin.haivvreo;
 
 import org.junit.Test;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 
 public class TestInstanceCache {
   private static class Foo {
@@ -25,6 +31,19 @@ public class TestInstanceCache {
     public int hashCode() {
       return 42;
     }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Foo;
+    }
+  }
+
+  // Hashes the same as any other, but equal only to itself
+  private static class Colliding {
+    @Override
+    public int hashCode() {
+      return 42;
+    }
   }
 
   private static class Wrapper<T> {
@@ -39,18 +58,18 @@ public class TestInstanceCache {
   public void instanceCachesOnlyCreateOneInstance() throws HaivvreoException {
     InstanceCache<Foo, Wrapper<Foo>> ic = new InstanceCache<Foo, Wrapper<Foo>>() {
                                            @Override
-                                           protected Wrapper makeInstance(Foo hv) {
-                                             return new Wrapper(hv);
+                                           protected Wrapper<Foo> makeInstance(Foo hv) {
+                                             return new Wrapper<Foo>(hv);
                                            }
                                           };
     Foo f1 = new Foo();
 
-    Wrapper fc = ic.retrieve(f1);
+    Wrapper<Foo> fc = ic.retrieve(f1);
     assertSame(f1, fc.wrapped); // Our original foo should be in the wrapper
 
     Foo f2 = new Foo(); // Different instance, same value
 
-    Wrapper fc2 = ic.retrieve(f2);
+    Wrapper<Foo> fc2 = ic.retrieve(f2);
     assertSame(fc2,fc); // Since equiv f, should get back first container
     assertSame(fc2.wrapped, f1);
   }
@@ -73,4 +92,115 @@ public class TestInstanceCache {
     Wrapper<String> anotherTwo = ic.retrieve("two");
     assertSame(two, anotherTwo);
   }
+
+  private static class Counting extends InstanceCache<String, Wrapper<String>> {
+    final AtomicInteger made = new AtomicInteger();
+
+    Counting(long maxWeight) {
+      super(maxWeight);
+    }
+
+    @Override
+    protected Wrapper<String> makeInstance(String hv) throws HaivvreoException {
+      made.incrementAndGet();
+      return new Wrapper<String>(hv);
+    }
+  }
+
+  @Test
+  public void seedsWithCollidingHashesGetTheirOwnInstances() throws HaivvreoException {
+    InstanceCache<Colliding, Wrapper<Colliding>> ic = new InstanceCache<Colliding, Wrapper<Colliding>>() {
+      @Override
+      protected Wrapper<Colliding> makeInstance(Colliding hv) {
+        return new Wrapper<Colliding>(hv);
+      }
+    };
+    Colliding c1 = new Colliding();
+    Colliding c2 = new Colliding();
+    assertSame(c1, ic.retrieve(c1).wrapped);
+    assertSame(c2, ic.retrieve(c2).wrapped);
+    assertNotSame(ic.retrieve(c1), ic.retrieve(c2));
+  }
+
+  @Test
+  public void leastRecentlyUsedInstancesAreEvicted() throws HaivvreoException {
+    Counting ic = new Counting(4);
+    Wrapper<String> one = ic.retrieve("one");
+    for(String s : new String[] {"two", "three", "four"})
+      ic.retrieve(s);
+    ic.retrieve("one"); // Now "two" is the least recently used
+
+    ic.retrieve("five"); // Over the maximum, so evict down to 3
+    assertEquals(3, ic.size());
+    assertEquals(2, ic.getEvictions());
+    assertSame(one, ic.retrieve("one"));
+    ic.retrieve("two");
+    assertEquals(6, ic.made.get()); // "two" had to be made again
+
+    assertEquals(6, ic.getMisses());
+    assertEquals(2, ic.getHits());
+  }
+
+  @Test
+  public void instancesAreCreatedOnceHoweverManyThreadsAskForThem() throws Exception {
+    final CountDownLatch asked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final InstanceCache<String, Wrapper<String>> ic = new Counting(10) {
+      @Override
+      protected Wrapper<String> makeInstance(String hv) throws HaivvreoException {
+        asked.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new HaivvreoException(e);
+        }
+        return super.makeInstance(hv);
+      }
+    };
+
+    final Object[] results = new Object[4];
+    Thread[] threads = new Thread[results.length];
+    for(int i = 0; i < threads.length; i++) {
+      final int n = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            results[n] = ic.retrieve("slow");
+          } catch (HaivvreoException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    asked.await();
+    Thread.sleep(100); // Give the others time to find it being made
+    release.countDown();
+    for(Thread t : threads)
+      t.join();
+
+    assertEquals(1, ((Counting) ic).made.get());
+    for(Object w : results)
+      assertSame(results[0], w);
+  }
+
+  @Test
+  public void failuresAreNotCached() throws HaivvreoException {
+    final AtomicInteger attempts = new AtomicInteger();
+    InstanceCache<String, String> ic = new InstanceCache<String, String>() {
+      @Override
+      protected String makeInstance(String hv) throws HaivvreoException {
+        if(attempts.incrementAndGet() == 1) throw new HaivvreoException("Not this time");
+        return hv;
+      }
+    };
+    try {
+      ic.retrieve("flaky");
+      fail("Should have passed on the failure");
+    } catch (HaivvreoException e) {
+      assertEquals("Not this time", e.getMessage());
+    }
+    assertEquals("flaky", ic.retrieve("flaky"));
+  }
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.avro.Schema;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class TestSchemaInterner {
+  private static final String text = TestAvroSerde.originalSchemaString;
+
+  @Test
+  public void theSameTextGivesTheSameInstance() throws IOException {
+    Schema schema = SchemaInterner.parse(text);
+    assertEquals(Schema.parse(text), schema);
+    assertSame(schema, SchemaInterner.parse(new String(text)));
+    assertSame(schema, SchemaInterner.parse(new ByteArrayInputStream(text.getBytes("UTF-8"))));
+  }
+
+  @Test
+  public void identicallyParsedTextsGiveTheSameInstance() {
+    // Same schema, laid out differently
+    assertSame(SchemaInterner.parse(text), SchemaInterner.parse(Schema.parse(text).toString(true)));
+    assertSame(SchemaInterner.parse(text), SchemaInterner.intern(Schema.parse(text)));
+  }
+
+  @Test
+  public void schemasDifferingOnlyInDocsAreKeptApart() {
+    String documented = text.replace("\"type\":\"string\"", "\"type\":\"string\", \"doc\":\"Some text\"");
+    Schema schema = SchemaInterner.parse(documented);
+    assertEquals(Schema.parse(text), schema); // Avro doesn't compare docs...
+    assertNotSame(SchemaInterner.parse(text), schema); // ...but they're not the same schema
+    assertEquals("Some text", schema.getField("text").doc());
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.avro.Schema;
+import org.apache.hadoop.conf.Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class TestSchemaUrlCache {
+  private static final Schema first = Schema.parse(TestAvroObjectInspectorGenerator.RECORD_SCHEMA);
+  private static final Schema second = Schema.parse(TestAvroSerde.originalSchemaString);
+
+  private File file;
+  private String url;
+  private long now = 1000000;
+  private final Configuration conf = new Configuration();
+  private final SchemaUrlCache cache = new SchemaUrlCache() {
+    @Override
+    long now() {
+      return now;
+    }
+  };
+
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("schema", ".avsc");
+    file.delete();
+    url = file.toURI().toURL().toString();
+    conf.setLong(SchemaUrlCache.TTL, 60);
+    conf.setLong(SchemaUrlCache.FAILURE_TTL, 10);
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  private void writeSchema(Schema schema, long modified) throws IOException {
+    FileWriter out = new FileWriter(file);
+    out.write(schema.toString());
+    out.close();
+    file.setLastModified(modified);
+  }
+
+  @Test
+  public void schemasAreCachedUntilTheyExpire() throws IOException {
+    writeSchema(first, 100000);
+    Schema read = cache.lookup(url, conf);
+    assertEquals(first, read);
+
+    writeSchema(second, 200000);
+    now += 59000;
+    assertSame(read, cache.lookup(url, conf));
+
+    now += 2000;
+    assertEquals(second, cache.lookup(url, conf));
+  }
+
+  @Test
+  public void unchangedSchemasAreNotReadAgain() throws IOException {
+    writeSchema(first, 100000);
+    Schema read = cache.lookup(url, conf);
+
+    // Changed, but with the same modification time, so it won't be read.
+    writeSchema(second, 100000);
+    now += 61000;
+    assertSame(read, cache.lookup(url, conf));
+  }
+
+  @Test
+  public void failuresAreRememberedForAShorterTime() throws IOException {
+    try {
+      cache.lookup(url, conf);
+      fail("There's no schema there to read");
+    } catch (IOException e) {
+      // good
+    }
+
+    writeSchema(first, 100000);
+    now += 9000;
+    try {
+      cache.lookup(url, conf);
+      fail("Should have remembered the failure");
+    } catch (IOException e) {
+      // good
+    }
+
+    now += 2000;
+    assertEquals(first, cache.lookup(url, conf));
+  }
+
+  @Test
+  public void schemasReadBeforeAreUsedIfTheyCantBeChecked() throws IOException {
+    writeSchema(first, 100000);
+    Schema read = cache.lookup(url, conf);
+
+    file.delete();
+    now += 61000;
+    assertSame(read, cache.lookup(url, conf));
+
+    writeSchema(second, 200000);
+    now += 9000;
+    assertSame(read, cache.lookup(url, conf)); // Not until the failure's forgotten
+    now += 2000;
+    assertEquals(second, cache.lookup(url, conf));
+  }
+
+  @Test
+  public void aTtlOfZeroTurnsCachingOff() throws IOException {
+    conf.setLong(SchemaUrlCache.TTL, 0);
+    writeSchema(first, 100000);
+    assertEquals(first, cache.lookup(url, conf));
+    writeSchema(second, 100000);
+    assertEquals(second, cache.lookup(url, conf));
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2011 LinkedIn
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.linkedin.haivvreo;
+
+import org.apache.avro.Schema;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.ql.plan.MapWork;
+import org.apache.hadoop.hive.ql.plan.PartitionDesc;
+import org.apache.hadoop.hive.ql.plan.TableDesc;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TestTableIndex {
+  private static Properties table(String name, String schema) {
+    Properties p = new Properties();
+    p.setProperty("name", name);
+    p.setProperty(HaivvreoUtils.SCHEMA_LITERAL, schema);
+    return p;
+  }
+
+  private static MapWork plan(Properties... partitions) {
+    LinkedHashMap<String, PartitionDesc> aliases = new LinkedHashMap<String, PartitionDesc>();
+    for(int i = 0; i < partitions.length; i++) {
+      TableDesc table = new TableDesc();
+      table.setProperties(partitions[i]);
+      PartitionDesc partition = new PartitionDesc();
+      partition.setTableDesc(table);
+      aliases.put("alias" + i, partition);
+    }
+    MapWork mapWork = new MapWork();
+    mapWork.setAliasToPartnInfo(aliases);
+    return mapWork;
+  }
+
+  @Test
+  public void tablesAreFoundByName() {
+    Properties one = table("db.one", TestAvroSerde.originalSchemaString);
+    Properties two = table("db.two", TestAvroSerde.newSchemaString);
+    TableIndex index = TableIndex.forPlan(plan(one, one, two));
+
+    assertSame(one, index.getTableProperties("db.one"));
+    assertSame(two, index.getTableProperties("db.two"));
+    assertNull(index.getTableProperties("db.three"));
+  }
+
+  @Test
+  public void aPlansOnlyTableIsUsedWhateverItsName() {
+    Properties one = table("db.one", TestAvroSerde.originalSchemaString);
+    assertSame(one, TableIndex.forPlan(plan(one)).getTableProperties("something else"));
+  }
+
+  @Test
+  public void indexesAreBuiltOncePerPlan() {
+    MapWork mapWork = plan(table("db.one", TestAvroSerde.originalSchemaString));
+    TableIndex index = TableIndex.forPlan(mapWork);
+    assertSame(index, TableIndex.forPlan(mapWork));
+    assertNotSame(index, TableIndex.forPlan(plan(table("db.one", TestAvroSerde.originalSchemaString))));
+  }
+
+  @Test
+  public void schemasAreDeterminedOncePerTable() {
+    Properties one = table("db.one", TestAvroSerde.originalSchemaString);
+    TableIndex index = TableIndex.forPlan(plan(one, table("db.two", TestAvroSerde.newSchemaString)));
+    Configuration conf = new Configuration();
+
+    Schema schema = index.getSchema(conf, one);
+    assertEquals(TestAvroSerde.originalSchema, schema);
+    one.setProperty(HaivvreoUtils.SCHEMA_LITERAL, TestAvroSerde.newSchemaString);
+    assertSame(schema, index.getSchema(conf, one));
+
+    // Properties from elsewhere aren't remembered.
+    Properties other = table("db.one", TestAvroSerde.originalSchemaString);
+    index.getSchema(conf, other);
+    other.setProperty(HaivvreoUtils.SCHEMA_LITERAL, TestAvroSerde.newSchemaString);
+    assertEquals(TestAvroSerde.newSchema, index.getSchema(conf, other));
+  }
+}